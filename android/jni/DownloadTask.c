@@ -5,6 +5,9 @@
 #include "cn_reactnative_modules_update_DownloadTask.h"
 
 #include "hpatch.h"
+#include <stdio.h>
+#include <sys/mman.h>
+#include <unistd.h>
 #define _check(v,errInfo) do{ if (!(v)) {  _isError=hpatch_TRUE; _errInfo=errInfo; goto _clear;  } }while(0)
 
 JNIEXPORT jbyteArray JNICALL Java_cn_reactnative_modules_update_DownloadTask_hdiffPatch
@@ -54,3 +57,37 @@ _clear:
     }
     return ret;
 }
+
+JNIEXPORT void JNICALL Java_cn_reactnative_modules_update_DownloadTask_hdiffPatchMapped
+        (JNIEnv *env, jclass self, jint fd, jlong offset, jlong length, jstring patch, jstring output){
+    const char* patchPath = (*env)->GetStringUTFChars(env, patch, NULL);
+    const char* outputPath = (*env)->GetStringUTFChars(env, output, NULL);
+    int result = kHPatch_error_info;
+    // mmap offsets must be page aligned, the origin may start anywhere (eg. inside an apk).
+    long pageSize = sysconf(_SC_PAGESIZE);
+    off_t mapOffset = (off_t)(offset - offset % pageSize);
+    size_t delta = (size_t)(offset - mapOffset);
+    size_t mapLength = (size_t)length + delta;
+    void* map = NULL;
+
+    if (length > 0) {
+        map = mmap(NULL, mapLength, PROT_READ, MAP_PRIVATE, fd, mapOffset);
+        if (map == MAP_FAILED) {
+            map = NULL;
+            result = kHPatch_error_old_fopen;
+        }
+    }
+    if (patchPath && outputPath && (map || length == 0))
+        result = hpatch_by_old_mem(map ? (const uint8_t*)map + delta : NULL, (size_t)length, outputPath, patchPath);
+
+    if (map) munmap(map, mapLength);
+    if (outputPath) (*env)->ReleaseStringUTFChars(env, output, outputPath);
+    if (patchPath) (*env)->ReleaseStringUTFChars(env, patch, patchPath);
+    if (result != kHPatch_ok){
+        char errInfo[64];
+        jclass newExcCls = (*env)->FindClass(env, "java/lang/Error");
+        snprintf(errInfo, sizeof(errInfo), "hpatch by mapped origin error: %d", result);
+        if (newExcCls != NULL) // Unable to find the new exception class, give up.
+            (*env)->ThrowNew(env, newExcCls, errInfo);
+    }
+}
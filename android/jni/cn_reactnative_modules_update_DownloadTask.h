@@ -15,6 +15,14 @@ extern "C" {
 JNIEXPORT jbyteArray JNICALL Java_cn_reactnative_modules_update_DownloadTask_hdiffPatch
   (JNIEnv *, jclass, jbyteArray, jbyteArray);
 
+/*
+ * Class:     cn_reactnative_modules_update_DownloadTask
+ * Method:    hdiffPatchMapped
+ * Signature: (IJJLjava/lang/String;Ljava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_cn_reactnative_modules_update_DownloadTask_hdiffPatchMapped
+  (JNIEnv *, jclass, jint, jlong, jlong, jstring, jstring);
+
 #ifdef __cplusplus
 }
 #endif
@@ -135,3 +135,31 @@ _clear:
     _check(hpatch_TFileStreamOutput_close(&newStream),kHPatch_error_new_fclose);
     return result;
 }
+
+int hpatch_by_old_mem(const uint8_t* old,size_t oldsize, const char* newfile, const char* patchfile){
+    int     result=kHPatch_ok;
+    int     _isInClear=hpatch_FALSE;
+    int     patch_result;
+    hpatch_TStreamInput oldStream;
+    hpatch_TFileStreamInput patStream;
+    hpatch_TFileStreamOutput newStream;
+    mem_as_hStreamInput(&oldStream,old,old+oldsize);
+    hpatch_TFileStreamInput_init(&patStream);
+    hpatch_TFileStreamOutput_init(&newStream);
+
+    _check(hpatch_TFileStreamInput_open(&patStream,patchfile),kHPatch_error_pat_fopen);
+    _check(hpatch_TFileStreamOutput_open(&newStream,newfile,~(hpatch_StreamPos_t)0),kHPatch_error_new_fopen);
+
+    patch_result=hpatch_by_stream(&oldStream,hpatch_FALSE,&patStream.base,&newStream.base,0);
+    if (patch_result!=kHPatch_ok){
+        _check(!patStream.fileError,kHPatch_error_pat_fread);
+        _check(!newStream.fileError,kHPatch_error_new_fwrite);
+        _check(hpatch_FALSE,patch_result);
+    }
+
+_clear:
+    _isInClear=hpatch_TRUE;
+    _check(hpatch_TFileStreamInput_close(&patStream),kHPatch_error_pat_fclose);
+    _check(hpatch_TFileStreamOutput_close(&newStream),kHPatch_error_new_fclose);
+    return result;
+}
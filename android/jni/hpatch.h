@@ -37,6 +37,8 @@ int hpatch_getInfo_by_mem(hpatch_singleCompressedDiffInfo* out_patinfo,
 int hpatch_by_mem(const uint8_t* old,size_t oldsize, uint8_t* newBuf,size_t newsize,
                   const uint8_t* pat,size_t patsize,const hpatch_singleCompressedDiffInfo* patInfo);
 int hpatch_by_file(const char* oldfile, const char* newfile, const char* patchfile);
+//old is read in place (eg. a mmap), never copied
+int hpatch_by_old_mem(const uint8_t* old,size_t oldsize, const char* newfile, const char* patchfile);
 
 #ifdef __cplusplus
 }
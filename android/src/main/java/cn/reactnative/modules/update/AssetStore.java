@@ -0,0 +1,114 @@
+package cn.reactnative.modules.update;
+
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Content-addressed store for the files of all versions under {@code _update/}.
+ *
+ * Every file is kept once as a blob named by its sha256 in {@code .blobs/},
+ * and version directories hold hard links to those blobs, so the directory
+ * tree of a version is its manifest. The link count of a blob is its
+ * reference count: once no version links to it any more, only the store
+ * itself does and {@link #collectGarbage()} deletes it.
+ */
+class AssetStore {
+    static final String BLOBS_DIR = ".blobs";
+
+    private final File blobs;
+
+    AssetStore(File rootDir) {
+        this.blobs = new File(rootDir, BLOBS_DIR);
+    }
+
+    /**
+     * Move the files of a freshly written version into the store.
+     */
+    void ingest(File versionDirectory) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        if (!blobs.exists()) {
+            blobs.mkdirs();
+        }
+        ingestTree(versionDirectory);
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private void ingestTree(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                ingestTree(file);
+            } else {
+                ingestFile(file);
+            }
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private void ingestFile(File file) throws IOException {
+        try {
+            if (Posix.linkCount(file) > 1) {
+                // Already linked from another version, so already shared.
+                return;
+            }
+            String digest = Sha256.of(file);
+            File blob = new File(blobs, digest);
+            if (blob.exists()) {
+                // Same content is stored already, replace our copy by a link to it.
+                // Staged in the store, a name next to the file could belong to the package.
+                File link = new File(blobs, "." + digest + "-" + System.nanoTime());
+                Posix.link(blob, link);
+                try {
+                    Posix.rename(link, file);
+                } catch (Posix.PosixException e) {
+                    // A stray link would keep the blob referenced forever.
+                    link.delete();
+                    throw e;
+                }
+            } else {
+                Posix.link(file, blob);
+            }
+        } catch (Posix.PosixException e) {
+            // The file stays valid on its own, it is just not deduplicated.
+            if (UpdateContext.DEBUG) {
+                Log.d("RNUpdate", "Failed to store " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Delete blobs that no version links to any more.
+     */
+    void collectGarbage() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        File[] files = blobs.listFiles();
+        if (files == null) {
+            return;
+        }
+        int removed = 0;
+        for (File blob : files) {
+            try {
+                if (Posix.linkCount(blob) <= 1 && blob.delete()) {
+                    removed++;
+                }
+            } catch (Posix.PosixException e) {
+                // Already gone.
+            }
+        }
+        if (UpdateContext.DEBUG) {
+            Log.d("RNUpdate", "Removed " + removed + " unreferenced blobs");
+        }
+    }
+}
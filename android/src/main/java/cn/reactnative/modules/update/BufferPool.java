@@ -0,0 +1,37 @@
+package cn.reactnative.modules.update;
+
+import java.nio.ByteBuffer;
+
+/**
+ * I/O buffers kept per thread, so copy and extract loops do not allocate
+ * for every file. A buffer must not be held across a call that could use
+ * the same kind of buffer on the same thread.
+ */
+class BufferPool {
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int DIRECT_BUFFER_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<byte[]> BYTES = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private static final ThreadLocal<ByteBuffer> DIRECT = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+        }
+    };
+
+    static byte[] bytes() {
+        return BYTES.get();
+    }
+
+    static ByteBuffer direct() {
+        ByteBuffer buffer = DIRECT.get();
+        buffer.clear();
+        return buffer;
+    }
+}
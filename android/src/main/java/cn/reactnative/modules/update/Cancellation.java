@@ -0,0 +1,14 @@
+package cn.reactnative.modules.update;
+
+import java.io.IOException;
+
+/**
+ * Polled by long loops working for a task, so they stop soon after the task
+ * is cancelled instead of running to the end.
+ */
+interface Cancellation {
+    /**
+     * @throws IOException if the task has been cancelled
+     */
+    void check() throws IOException;
+}
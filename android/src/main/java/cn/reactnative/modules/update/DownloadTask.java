@@ -1,11 +1,14 @@
 package cn.reactnative.modules.update;
 
 import android.content.Context;
-import android.os.AsyncTask;
+import android.content.res.AssetFileDescriptor;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.WritableMap;
 
+import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -15,17 +18,32 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RecursiveAction;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.zip.ZipEntry;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 import okio.BufferedSink;
 import okio.BufferedSource;
@@ -33,21 +51,46 @@ import okio.Okio;
 import static cn.reactnative.modules.update.UpdateModule.sendEvent;
 
 
-class DownloadTask extends AsyncTask<DownloadTaskParams, long[], Void> {
-    final int DOWNLOAD_CHUNK_SIZE = 4096;
+class DownloadTask {
+    // Bounds of the amount of downloaded data written to disk at once.
+    private static final long MIN_CHUNK_SIZE = 64 * 1024;
+    private static final long MAX_CHUNK_SIZE = 1024 * 1024;
+    // How often the chunk size is adapted, and how much of a window's data it should hold.
+    private static final long THROUGHPUT_WINDOW_MILLIS = 250;
 
     Context context;
     String hash;
-
-    DownloadTask(Context context) {
+    final DownloadTaskParams param;
+    private final ProgressReporter progress = new ProgressReporter(this::onProgressUpdate);
+    private volatile boolean cancelled = false;
+    private volatile Call call;
+    private volatile SegmentedDownloader segmentedDownloader;
+    private static volatile boolean linkUnsupported = false;
+    private static volatile boolean mappedPatchUnavailable = false;
+    private boolean unzipped = false;
+
+    static final String STAGING_SUFFIX = ".tmp";
+
+    // Entries of a patch package that drive the patch instead of being extracted.
+    private static final Set<String> PATCH_CONTROL_ENTRIES =
+            new HashSet<>(Arrays.asList("__diff.json", "index.bundlejs.patch"));
+
+    DownloadTask(Context context, DownloadTaskParams param) {
         this.context = context;
+        this.param = param;
     }
 
-    static {
-        System.loadLibrary("rnupdate");
+    private static boolean nativeLoaded = false;
+
+    // Loaded on first patch rather than with the class, so the file handling can run on a plain JVM in tests.
+    private static synchronized void loadNativeLibrary() {
+        if (!nativeLoaded) {
+            System.loadLibrary("rnupdate");
+            nativeLoaded = true;
+        }
     }
 
-    private void removeDirectory(File file) throws IOException {
+    static void removeDirectory(File file) throws IOException {
         if (UpdateContext.DEBUG) {
             Log.d("RNUpdate", "Removing " + file);
         }
@@ -70,87 +113,328 @@ class DownloadTask extends AsyncTask<DownloadTaskParams, long[], Void> {
         String url = param.url;
         File writePath = param.targetFile;
         this.hash = param.hash;
-        OkHttpClient client = new OkHttpClient();
-        Request request = new Request.Builder().url(url)
-                .build();
-        Response response = client.newCall(request).execute();
-        if (response.code() > 299) {
-            throw new Error("Server return code " + response.code());
-        }
-        ResponseBody body = response.body();
+        OkHttpClient client = UpdateContext.getHttpClient();
+
+        PartialDownload partial = new PartialDownload(writePath);
+        partial.load();
+
+        if (param.segments > 1 && !partial.canResume()) {
+            SegmentedDownloader downloader = new SegmentedDownloader(client, url, writePath, param.segments, progress::update);
+            segmentedDownloader = downloader;
+            checkCancelled();
+            if (downloader.download()) {
+                if (param.digest != null) {
+                    // Segments arrive out of order, so hash the assembled file.
+                    MessageDigest digest = Sha256.newDigest();
+                    Sha256.update(digest, writePath);
+                    if (!Sha256.matches(digest, param.digest)) {
+                        writePath.delete();
+                        throw new Error("Digest mismatch for " + url);
+                    }
+                }
+                long total = writePath.length();
+                progress.finish(total, total);
+                if (UpdateContext.DEBUG) {
+                    Log.d("RNUpdate", "Download finished");
+                }
+                return;
+            }
+        }
+
+        MessageDigest digest = param.digest != null ? Sha256.newDigest() : null;
+        Request.Builder builder = new Request.Builder().url(url);
+        if (partial.canResume()) {
+            builder.header("Range", "bytes=" + partial.offset + "-")
+                    .header("If-Range", partial.etag);
+        }
+        call = client.newCall(builder.build());
+        checkCancelled();
+        try (Response response = call.execute()) {
+            if (response.code() == 416) {
+                partial.discard();
+            }
+            if (response.code() > 299) {
+                throw new Error("Server return code " + response.code());
+            }
+            if (response.code() == 206 && partial.canResume()) {
+                if (!response.header("Content-Range", "").startsWith("bytes " + partial.offset + "-")) {
+                    partial.discard();
+                    throw new Error("Unexpected content range " + response.header("Content-Range"));
+                }
+                if (UpdateContext.DEBUG) {
+                    Log.d("RNUpdate", "Resuming " + url + " from " + partial.offset);
+                }
+                partial.resume();
+                if (digest != null) {
+                    Sha256.update(digest, partial.partFile);
+                }
+            } else {
+                // Full response, either no partial state or the resource has changed.
+                partial.restart(PartialDownload.strongEtag(response.header("ETag")));
+            }
+            writeResponse(response.body(), url, partial, digest, progress, this::checkCancelled,
+                    MIN_CHUNK_SIZE, MAX_CHUNK_SIZE);
+        }
+        if (digest != null && !Sha256.matches(digest, param.digest)) {
+            // Drop the corrupt bytes so the next attempt starts over.
+            partial.discard();
+            throw new Error("Digest mismatch for " + url);
+        }
+        partial.complete();
+
+        if (UpdateContext.DEBUG) {
+            Log.d("RNUpdate", "Download finished");
+        }
+    }
+
+    /**
+     * Write a response body to the part file, in chunks of {@code minChunkSize}
+     * up to {@code maxChunkSize} bytes adapted to the measured throughput, and
+     * checkpoint the partial download only after flushing.
+     */
+    static void writeResponse(ResponseBody body, String url, PartialDownload partial, MessageDigest digest,
+                              ProgressReporter progress, Cancellation cancellation,
+                              long minChunkSize, long maxChunkSize) throws IOException {
+        long offset = partial.offset;
         long contentLength = body.contentLength();
+        long total = contentLength == -1 ? -1 : offset + contentLength;
         BufferedSource source = body.source();
 
-        if (writePath.exists()) {
-            writePath.delete();
+        OutputStream out = new FileOutputStream(partial.partFile, offset > 0);
+        if (digest != null) {
+            // Hash the bytes in the same pass that writes them.
+            out = new DigestOutputStream(out, digest);
         }
-
-        BufferedSink sink = Okio.buffer(Okio.sink(writePath));
+        BufferedSink sink = Okio.buffer(Okio.sink(out));
 
         if (UpdateContext.DEBUG) {
             Log.d("RNUpdate", "Downloading " + url);
         }
 
-        long bytesRead = 0;
+        try {
+            long bytesRead = 0;
+            long received = offset;
+            long chunkSize = minChunkSize;
+            long windowStart = System.nanoTime() / 1000000;
+            long windowBytes = 0;
+            while ((bytesRead = source.read(sink.buffer(), chunkSize)) != -1) {
+                cancellation.check();
+                received += bytesRead;
+                windowBytes += bytesRead;
+                progress.update(received, total);
+                if (sink.buffer().size() < chunkSize) {
+                    continue;
+                }
+                sink.emit();
+                if (partial.needsCheckpoint(received)) {
+                    sink.flush();
+                    partial.checkpoint(received);
+                }
+                long now = System.nanoTime() / 1000000;
+                if (now - windowStart >= THROUGHPUT_WINDOW_MILLIS) {
+                    // Write about one window of data at a time: small chunks keep slow
+                    // connections checkpointed, large ones save syscalls on fast ones.
+                    long perWindow = windowBytes * THROUGHPUT_WINDOW_MILLIS / (now - windowStart);
+                    chunkSize = Math.max(minChunkSize, Math.min(maxChunkSize, perWindow));
+                    windowStart = now;
+                    windowBytes = 0;
+                }
+            }
+            if (total != -1 && received != total) {
+                throw new Error("Unexpected eof while reading downloaded update");
+            }
+            progress.finish(received, total);
+        } finally {
+            sink.close();
+        }
+    }
+
+    /**
+     * Counts, hashes and reports the bytes of a response as they are consumed.
+     */
+    private class ProgressInputStream extends FilterInputStream {
+        final long total;
+        final MessageDigest digest;
         long received = 0;
-        int currentPercentage = 0;
-        while ((bytesRead = source.read(sink.buffer(), DOWNLOAD_CHUNK_SIZE)) != -1) {
-            received += bytesRead;
-            sink.emit();
+
+        ProgressInputStream(InputStream in, long total, MessageDigest digest) {
+            super(in);
+            this.total = total;
+            this.digest = digest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                if (digest != null) {
+                    digest.update(b, off, count);
+                }
+                received += count;
+                progress.update(received, total);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must still be counted and hashed.
+            byte[] skipped = new byte[(int) Math.min(n, 4096)];
+            int count = read(skipped, 0, skipped.length);
+            return count < 0 ? 0 : count;
+        }
+    }
+
+    /**
+     * Extract a full package while it is being downloaded, without writing
+     * the .ppk file to disk first.
+     */
+    private void downloadAndUnzip(DownloadTaskParams param) throws IOException {
+        String url = param.url;
+        this.hash = param.hash;
+        MessageDigest digest = param.digest != null ? Sha256.newDigest() : null;
+
+        File unzipDirectory = beginStaging();
+
+        call = UpdateContext.getHttpClient().newCall(new Request.Builder().url(url).build());
+        checkCancelled();
+        try (Response response = call.execute()) {
+            if (response.code() > 299) {
+                throw new Error("Server return code " + response.code());
+            }
+            ResponseBody body = response.body();
+            long total = body.contentLength();
+
             if (UpdateContext.DEBUG) {
-                Log.d("RNUpdate", "Progress " + received + "/" + contentLength);
+                Log.d("RNUpdate", "Downloading and unzipping " + url);
             }
-            
-            int percentage = (int)(received * 100.0 / contentLength + 0.5);
-            if (percentage > currentPercentage) {
-                currentPercentage = percentage;
-                publishProgress(new long[]{received, contentLength});
+
+            ProgressInputStream counting = new ProgressInputStream(body.byteStream(), total, digest);
+            InputStream input = new BufferedInputStream(counting);
+            SafeZipFile.unzipStreamToPath(input, unzipDirectory);
+            // Drain the central directory so length and digest cover the whole package.
+            byte[] buffer = BufferPool.bytes();
+            while (input.read(buffer) != -1) {
+            }
+            if (total != -1 && counting.received != total) {
+                throw new Error("Unexpected eof while reading downloaded update");
             }
+            progress.finish(counting.received, total);
         }
-        if (received != contentLength) {
-            throw new Error("Unexpected eof while reading downloaded update");
+        if (digest != null && !Sha256.matches(digest, param.digest)) {
+            throw new Error("Digest mismatch for " + url);
         }
-        publishProgress(new long[]{received, contentLength});
-        sink.writeAll(source);
-        sink.close();
 
         if (UpdateContext.DEBUG) {
-            Log.d("RNUpdate", "Download finished");
+            Log.d("RNUpdate", "Unzip finished");
         }
     }
 
-    @Override
-    protected void onProgressUpdate(long[]... values) {
-        super.onProgressUpdate(values);
+    private void onProgressUpdate(long received, long total) {
+        if (UpdateContext.DEBUG) {
+            Log.d("RNUpdate", "Progress " + received + "/" + total);
+        }
         WritableMap params = Arguments.createMap();
-        params.putDouble("received", (values[0][0]));
-        params.putDouble("total", (values[0][1]));
+        params.putDouble("received", received);
+        params.putDouble("total", total);
         params.putString("hash", this.hash);
         sendEvent("RCTPushyDownloadProgress", params);
 
     }
 
-    byte[] buffer = new byte[1024*4];
+    void cancel() {
+        cancelled = true;
+        Call call = this.call;
+        if (call != null) {
+            call.cancel();
+        }
+        SegmentedDownloader downloader = segmentedDownloader;
+        if (downloader != null) {
+            downloader.cancel();
+        }
+    }
+
+    private void checkCancelled() throws IOException {
+        if (cancelled) {
+            throw new IOException("Download cancelled");
+        }
+    }
 
     private static native byte[] hdiffPatch(byte[] origin, byte[] patch);
 
+    // Reads the origin through a read-only mmap of length bytes at offset in fd.
+    // Missing from librnupdate builds that predate it, see patchBundle.
+    private static native void hdiffPatchMapped(int fd, long offset, long length, String patch, String output);
 
-    private void copyFile(File from, File fmd) throws IOException {
-        int count;
 
-        InputStream in = new FileInputStream(from);
-        FileOutputStream fout = new FileOutputStream(fmd);
+    static void copyFile(File from, File fmd) throws IOException {
+        try (FileInputStream in = new FileInputStream(from);
+             FileOutputStream fout = new FileOutputStream(fmd)) {
+            FileChannel source = in.getChannel();
+            transfer(source, source.size(), fout.getChannel());
+        }
+    }
 
-        while ((count = in.read(buffer)) != -1)
-        {
-            fout.write(buffer, 0, count);
+    /**
+     * Copy the first {@code size} bytes of {@code source}. transferTo lets the
+     * kernel move the bytes (sendfile) without a trip through java heap.
+     *
+     * @throws IOException if the source ends early, rather than leaving a truncated copy
+     */
+    static void transfer(FileChannel source, long size, FileChannel target) throws IOException {
+        long position = 0;
+        while (position < size) {
+            long count = source.transferTo(position, size - position, target);
+            if (count <= 0) {
+                throw new IOException("Source ended after " + position + " of " + size + " bytes");
+            }
+            position += count;
         }
+    }
 
-        fout.close();
-        in.close();
+    private Callable<Void> linkOrCopyTask(final File from, final File to) {
+        return () -> {
+            linkOrCopy(from, to);
+            return null;
+        };
+    }
+
+    /**
+     * Share an unchanged file with {@code from} through a hard link, so it costs
+     * no extra space or copy time. Files in version directories are never
+     * modified in place, which keeps the link safe. Falls back to a byte copy
+     * where links are not supported.
+     */
+    private void linkOrCopy(File from, File to) throws IOException {
+        checkCancelled();
+        if (to.exists()) {
+            to.delete();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && !linkUnsupported) {
+            try {
+                Posix.link(from, to);
+                return;
+            } catch (Posix.PosixException e) {
+                if (!e.notFound) {
+                    if (UpdateContext.DEBUG) {
+                        Log.d("RNUpdate", "Hard link not supported, copying instead", e);
+                    }
+                    linkUnsupported = true;
+                }
+            }
+        }
+        copyFile(from, to);
     }
 
     private byte[] readBytes(InputStream zis) throws IOException {
+        byte[] buffer = BufferPool.bytes();
         int count;
 
         ByteArrayOutputStream fout = new ByteArrayOutputStream();
@@ -164,16 +448,19 @@ class DownloadTask extends AsyncTask<DownloadTaskParams, long[], Void> {
         return fout.toByteArray();
     }
 
-    private byte[] readOriginBundle()  throws IOException {
+    private File extractOriginBundle() throws IOException {
+        File origin = File.createTempFile("index.android", ".bundle", context.getCacheDir());
         InputStream in;
         try {
             in = context.getAssets().open("index.android.bundle");
         } catch (Exception e) {
-            return new byte[0];
+            // No bundle in apk, patch from an empty origin.
+            return origin;
         }
+        byte[] buffer = BufferPool.bytes();
         int count;
 
-        ByteArrayOutputStream fout = new ByteArrayOutputStream();
+        FileOutputStream fout = new FileOutputStream(origin);
         while ((count = in.read(buffer)) != -1)
         {
             fout.write(buffer, 0, count);
@@ -181,65 +468,254 @@ class DownloadTask extends AsyncTask<DownloadTaskParams, long[], Void> {
 
         fout.close();
         in.close();
-        return fout.toByteArray();
+        return origin;
     }
 
-    private byte[] readFile(File file)  throws IOException {
-        InputStream in = new FileInputStream(file);
-        int count;
+    private void patchBundle(File origin, SafeZipFile zipFile, ZipEntry ze, File output) throws IOException {
+        ParcelFileDescriptor fd = ParcelFileDescriptor.open(origin, ParcelFileDescriptor.MODE_READ_ONLY);
+        try {
+            patchBundle(fd, 0, origin.length(), zipFile, ze, output);
+        } finally {
+            fd.close();
+        }
+    }
 
-        ByteArrayOutputStream fout = new ByteArrayOutputStream();
-        while ((count = in.read(buffer)) != -1)
-        {
-            fout.write(buffer, 0, count);
+    private void patchBundle(ParcelFileDescriptor origin, long offset, long length, SafeZipFile zipFile, ZipEntry ze, File output) throws IOException {
+        loadNativeLibrary();
+        if (output.exists()) {
+            // Never write through a link shared with another version.
+            output.delete();
+        }
+        if (!mappedPatchUnavailable) {
+            // The origin is mapped by the native patcher, patch and output are streamed through files,
+            // so the bundle never sits in java heap.
+            File patch = File.createTempFile("index.bundlejs", ".patch", context.getCacheDir());
+            try {
+                zipFile.unzipToFile(ze, patch);
+                hdiffPatchMapped(origin.getFd(), offset, length, patch.getAbsolutePath(), output.getAbsolutePath());
+                return;
+            } catch (UnsatisfiedLinkError e) {
+                // librnupdate was built before the mapped entry point existed.
+                if (UpdateContext.DEBUG) {
+                    Log.d("RNUpdate", "Mapped patch not available, patching in memory", e);
+                }
+                mappedPatchUnavailable = true;
+            } finally {
+                patch.delete();
+            }
         }
+        byte[] originBytes = readRange(origin, offset, length);
+        byte[] patchBytes = readBytes(zipFile.getInputStream(ze));
+        byte[] bundle = hdiffPatch(originBytes, patchBytes);
+        try (FileOutputStream fout = new FileOutputStream(output)) {
+            fout.write(bundle);
+        }
+    }
 
-        fout.close();
-        in.close();
-        return fout.toByteArray();
+    private static byte[] readRange(ParcelFileDescriptor fd, long offset, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Origin bundle too large: " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        // Positional reads leave the shared descriptor alone, and the stream is not closed
+        // since the descriptor belongs to the caller.
+        FileChannel channel = new FileInputStream(fd.getFileDescriptor()).getChannel();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected eof while reading origin bundle");
+            }
+        }
+        return bytes;
+    }
+
+    private void patchBundleFromApk(SafeZipFile zipFile, ZipEntry ze, File output) throws IOException {
+        AssetFileDescriptor asset = null;
+        try {
+            // Only succeeds for assets stored uncompressed, which can be mapped right inside the apk.
+            asset = context.getAssets().openFd("index.android.bundle");
+        } catch (IOException e) {
+            if (UpdateContext.DEBUG) {
+                Log.d("RNUpdate", "Bundle asset is compressed or missing, inflating it");
+            }
+        }
+        if (asset != null) {
+            try {
+                patchBundle(asset.getParcelFileDescriptor(), asset.getStartOffset(), asset.getLength(), zipFile, ze, output);
+            } finally {
+                asset.close();
+            }
+            return;
+        }
+        File origin = extractOriginBundle();
+        try {
+            patchBundle(origin, zipFile, ze, output);
+        } finally {
+            origin.delete();
+        }
+    }
+
+    /**
+     * The "deletes" of a diff, converted once so each file costs one hash
+     * lookup, and directories nothing is deleted from are not checked at all.
+     */
+    private static class CopyBlacklist {
+        private final Set<String> names = new HashSet<>();
+        private final Set<String> prefixes = new HashSet<>();
+
+        CopyBlacklist(JSONObject deletes) {
+            Iterator<?> keys = deletes.keys();
+            while (keys.hasNext()) {
+                String name = (String) keys.next();
+                names.add(name);
+                for (int i = name.indexOf('/'); i >= 0; i = name.indexOf('/', i + 1)) {
+                    prefixes.add(name.substring(0, i + 1));
+                }
+            }
+        }
+
+        boolean contains(String name) {
+            return names.contains(name);
+        }
+
+        /**
+         * Whether anything directly or deeper inside the directory {@code prefix}
+         * ("" for the root, otherwise ending with '/') is blacklisted.
+         */
+        boolean affects(String prefix) {
+            return prefix.isEmpty() ? !names.isEmpty() : prefixes.contains(prefix);
+        }
+    }
+
+    private static class WalkFailure extends RuntimeException {
+        WalkFailure(IOException cause) {
+            super(cause);
+        }
     }
 
-    private void copyFilesWithBlacklist(String current, File from, File to, JSONObject blackList) throws IOException {
+    /**
+     * Copies one directory: subdirectories are forked first, so their listing
+     * and mkdir overlap with the copies of this directory's files.
+     */
+    private class CopyTreeAction extends RecursiveAction {
+        final String current;
+        final File from;
+        final File to;
+        final CopyBlacklist blackList;
+
+        CopyTreeAction(String current, File from, File to, CopyBlacklist blackList) {
+            this.current = current;
+            this.from = from;
+            this.to = to;
+            this.blackList = blackList;
+        }
+
+        @Override
+        protected void compute() {
+            File[] files = from.listFiles();
+            if (files == null) {
+                return;
+            }
+            boolean check = blackList.affects(current);
+            List<CopyTreeAction> subtasks = new ArrayList<>();
+            for (File file : files) {
+                if (!file.isDirectory()) {
+                    continue;
+                }
+                String subName = current + file.getName() + '/';
+                if (check && blackList.contains(subName)) {
+                    continue;
+                }
+                File toFile = new File(to, file.getName());
+                if (!toFile.exists()) {
+                    toFile.mkdir();
+                }
+                CopyTreeAction subtask = new CopyTreeAction(subName, file, toFile, blackList);
+                subtask.fork();
+                subtasks.add(subtask);
+            }
+            RuntimeException failure = null;
+            try {
+                for (File file : files) {
+                    if (file.isDirectory() || (check && blackList.contains(current + file.getName()))) {
+                        continue;
+                    }
+                    File toFile = new File(to, file.getName());
+                    if (!toFile.exists()) {
+                        linkOrCopy(file, toFile);
+                    }
+                }
+            } catch (IOException e) {
+                failure = new WalkFailure(e);
+            }
+            // Always wait for the subtrees, nothing may still be writing once this returns.
+            for (CopyTreeAction subtask : subtasks) {
+                try {
+                    subtask.join();
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private void copyFilesWithBlacklist(String current, File from, File to, CopyBlacklist blackList, List<Callable<Void>> copies) throws IOException {
         File[] files = from.listFiles();
+        boolean check = blackList.affects(current);
         for (File file : files) {
             if (file.isDirectory()) {
                 String subName = current + file.getName() + '/';
-                if (blackList.has(subName)) {
+                if (check && blackList.contains(subName)) {
                     continue;
                 }
                 File toFile = new File(to, file.getName());
                 if (!toFile.exists()) {
                     toFile.mkdir();
                 }
-                copyFilesWithBlacklist(subName, file, toFile, blackList);
-            } else if (!blackList.has(current + file.getName())) {
+                copyFilesWithBlacklist(subName, file, toFile, blackList, copies);
+            } else if (!check || !blackList.contains(current + file.getName())) {
                 // Copy file.
                 File toFile = new File(to, file.getName());
                 if (!toFile.exists()) {
-                    copyFile(file, toFile);
+                    copies.add(linkOrCopyTask(file, toFile));
                 }
             }
         }
     }
 
-    private void copyFilesWithBlacklist(File from, File to, JSONObject blackList) throws IOException {
-        copyFilesWithBlacklist("", from, to, blackList);
+    private void copyFilesWithBlacklist(File from, File to, JSONObject deletes) throws IOException {
+        CopyBlacklist blackList = new CopyBlacklist(deletes);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                ParallelWorkers.forkJoinPool().invoke(new CopyTreeAction("", from, to, blackList));
+            } catch (WalkFailure e) {
+                // Failures crossing threads may come back wrapped once more.
+                Throwable cause = e;
+                while (cause instanceof WalkFailure) {
+                    cause = cause.getCause();
+                }
+                throw (IOException) cause;
+            }
+            return;
+        }
+        // Walk first, creating directories, then copy the files in parallel.
+        List<Callable<Void>> copies = new ArrayList<>();
+        copyFilesWithBlacklist("", from, to, blackList, copies);
+        ParallelWorkers.invokeAll(copies);
     }
 
     private void doFullPatch(DownloadTaskParams param) throws IOException {
-        downloadFile(param);
+        checkCancelled();
 
-        removeDirectory(param.unzipDirectory);
-        param.unzipDirectory.mkdirs();
+        File unzipDirectory = beginStaging();
 
         SafeZipFile zipFile = new SafeZipFile(param.targetFile);
-        Enumeration<? extends ZipEntry> entries = zipFile.entries();
-        while (entries.hasMoreElements()) {
-            ZipEntry ze = entries.nextElement();
-
-            zipFile.unzipToPath(ze, param.unzipDirectory);
-        }
-
+        zipFile.extractAll(unzipDirectory, Collections.<String>emptySet(), ParallelWorkers.executor(), this::checkCancelled);
         zipFile.close();
 
 
@@ -249,37 +725,53 @@ class DownloadTask extends AsyncTask<DownloadTaskParams, long[], Void> {
     }
 
     private void copyFromResource(HashMap<String, ArrayList<File> > resToCopy) throws IOException {
-        SafeZipFile zipFile = new SafeZipFile(new File(context.getPackageResourcePath()));
-        Enumeration<? extends ZipEntry> entries = zipFile.entries();
-        while (entries.hasMoreElements()) {
-            ZipEntry ze = entries.nextElement();
-
-            String fn = ze.getName();
-            ArrayList<File> targets = resToCopy.get(fn);
-            if (targets != null) {
-                File lastTarget = null;
-                for (File target: targets) {
+        final SafeZipFile zipFile = new SafeZipFile(new File(context.getPackageResourcePath()));
+        try {
+            // Look up the needed entries directly instead of walking the whole apk.
+            List<Callable<Void>> extracts = new ArrayList<>();
+            List<Callable<Void>> copies = new ArrayList<>();
+            for (Map.Entry<String, ArrayList<File>> entry : resToCopy.entrySet()) {
+                final String fn = entry.getKey();
+                final ZipEntry ze = zipFile.getEntry(fn);
+                if (ze == null) {
                     if (UpdateContext.DEBUG) {
-                        Log.d("RNUpdate", "Copying from resource " + fn + " to " + target);
+                        Log.d("RNUpdate", "Resource " + fn + " not found");
                     }
-                    if (lastTarget != null) {
-                        copyFile(lastTarget, target);
-                    } else {
-                        zipFile.unzipToFile(ze, target);
-                        lastTarget = target;
+                    continue;
+                }
+                ArrayList<File> targets = entry.getValue();
+                final File firstTarget = targets.get(0);
+                extracts.add(() -> {
+                    if (UpdateContext.DEBUG) {
+                        Log.d("RNUpdate", "Copying from resource " + fn + " to " + firstTarget);
                     }
+                    zipFile.unzipToFile(ze, firstTarget);
+                    return null;
+                });
+                for (final File target : targets.subList(1, targets.size())) {
+                    copies.add(() -> {
+                        if (UpdateContext.DEBUG) {
+                            Log.d("RNUpdate", "Copying from resource " + fn + " to " + target);
+                        }
+                        linkOrCopy(firstTarget, target);
+                        return null;
+                    });
                 }
             }
+            ParallelWorkers.invokeAll(extracts);
+            // Targets sharing a source are copied from its first extracted copy.
+            ParallelWorkers.invokeAll(copies);
+        } finally {
+            zipFile.close();
         }
-        zipFile.close();
     }
 
     private void doPatchFromApk(DownloadTaskParams param) throws IOException, JSONException {
-        downloadFile(param);
+        checkCancelled();
 
-        removeDirectory(param.unzipDirectory);
-        param.unzipDirectory.mkdirs();
+        File unzipDirectory = beginStaging();
         HashMap<String, ArrayList<File>> copyList = new HashMap<String, ArrayList<File>>();
+        ExtractionContext extraction = new ExtractionContext(unzipDirectory);
 
         boolean foundDiff = false;
         boolean foundBundlePatch = false;
@@ -312,33 +804,21 @@ class DownloadTask extends AsyncTask<DownloadTaskParams, long[], Void> {
                     } else {
                         target = copyList.get((from));
                     }
-                    File toFile = new File(param.unzipDirectory, to);
-
                     // Fixing a Zip Path Traversal Vulnerability
                     // https://support.google.com/faqs/answer/9294009
-                    String canonicalPath = toFile.getCanonicalPath();
-                    if (!canonicalPath.startsWith(param.unzipDirectory.getCanonicalPath() + File.separator)) {
-                        throw new SecurityException("Illegal name: " + to);
-                    }
-                    target.add(toFile);
+                    target.add(extraction.resolve(to));
                 }
                 continue;
             }
             if (fn.equals("index.bundlejs.patch")) {
                 foundBundlePatch = true;
 
-                byte[] patched = hdiffPatch(readOriginBundle(), readBytes(zipFile.getInputStream(ze)));
-
-                FileOutputStream fout = new FileOutputStream(new File(param.unzipDirectory, "index.bundlejs"));
-                fout.write(patched);
-                fout.close();
-                continue;
+                patchBundleFromApk(zipFile, ze, new File(unzipDirectory, "index.bundlejs"));
             }
-
-
-            zipFile.unzipToPath(ze, param.unzipDirectory);
         }
 
+        zipFile.extractAll(unzipDirectory, PATCH_CONTROL_ENTRIES, ParallelWorkers.executor(), this::checkCancelled);
+
         zipFile.close();
 
 
@@ -358,14 +838,11 @@ class DownloadTask extends AsyncTask<DownloadTaskParams, long[], Void> {
     }
 
     private void doPatchFromPpk(DownloadTaskParams param) throws IOException, JSONException {
-        downloadFile(param);
+        checkCancelled();
 
-        removeDirectory(param.unzipDirectory);
-        param.unzipDirectory.mkdirs();
+        File unzipDirectory = beginStaging();
 
-        int count;
-        String filename;
-        boolean foundDiff = false;
+        JSONObject diff = null;
         boolean foundBundlePatch = false;
 
 
@@ -376,44 +853,42 @@ class DownloadTask extends AsyncTask<DownloadTaskParams, long[], Void> {
             String fn = ze.getName();
 
             if (fn.equals("__diff.json")) {
-                foundDiff = true;
-                // copy files from assets
                 byte[] bytes = readBytes(zipFile.getInputStream(ze));
                 String json = new String(bytes, "UTF-8");
-                JSONObject obj = (JSONObject)new JSONTokener(json).nextValue();
-
-                JSONObject copies = obj.getJSONObject("copies");
-                Iterator<?> keys = copies.keys();
-                while( keys.hasNext() ) {
-                    String to = (String)keys.next();
-                    String from = copies.getString(to);
-                    if (from.isEmpty()) {
-                        from = to;
-                    }
-                    copyFile(new File(param.originDirectory, from), new File(param.unzipDirectory, to));
-                }
-                JSONObject blackList = obj.getJSONObject("deletes");
-                copyFilesWithBlacklist(param.originDirectory, param.unzipDirectory, blackList);
+                diff = (JSONObject)new JSONTokener(json).nextValue();
                 continue;
             }
             if (fn.equals("index.bundlejs.patch")) {
                 foundBundlePatch = true;
-                byte[] patched = hdiffPatch(readFile(new File(param.originDirectory, "index.bundlejs")), readBytes(zipFile.getInputStream(ze)));
-
-                FileOutputStream fout = new FileOutputStream(new File(param.unzipDirectory, "index.bundlejs"));
-                fout.write(patched);
-                fout.close();
-                continue;
+                patchBundle(new File(param.originDirectory, "index.bundlejs"), zipFile, ze, new File(unzipDirectory, "index.bundlejs"));
             }
-
-            zipFile.unzipToPath(ze, param.unzipDirectory);
         }
 
+        zipFile.extractAll(unzipDirectory, PATCH_CONTROL_ENTRIES, ParallelWorkers.executor(), this::checkCancelled);
+
         zipFile.close();
 
-        if (!foundDiff) {
+        if (diff == null) {
             throw new Error("diff.json not found");
         }
+
+        // Unchanged files are taken from the origin version last, after everything
+        // in the package has been written, since they may be shared hard links.
+        JSONObject copies = diff.getJSONObject("copies");
+        Iterator<?> keys = copies.keys();
+        List<Callable<Void>> copyTasks = new ArrayList<>();
+        while( keys.hasNext() ) {
+            String to = (String)keys.next();
+            String from = copies.getString(to);
+            if (from.isEmpty()) {
+                from = to;
+            }
+            copyTasks.add(linkOrCopyTask(new File(param.originDirectory, from), new File(unzipDirectory, to)));
+        }
+        ParallelWorkers.invokeAll(copyTasks);
+        JSONObject blackList = diff.getJSONObject("deletes");
+        copyFilesWithBlacklist(param.originDirectory, unzipDirectory, blackList);
+
         if (!foundBundlePatch) {
             throw new Error("bundle patch not found");
         }
@@ -427,75 +902,194 @@ class DownloadTask extends AsyncTask<DownloadTaskParams, long[], Void> {
         }
         File root = param.unzipDirectory;
         for (File sub : root.listFiles()) {
-            if (sub.getName().charAt(0) == '.') {
+            boolean backup = UpdateContext.isBackup(sub);
+            if (sub.getName().charAt(0) == '.' && !isStaging(sub) && !backup) {
+                continue;
+            }
+            if (isInFlight(sub.getName(), param)) {
+                // Belongs to a download that is queued or running.
+                continue;
+            }
+            if (backup) {
+                // Left by a publish that was interrupted between its two renames.
+                if (!UpdateContext.restoreBackup(sub)) {
+                    Trash.move(sub);
+                }
                 continue;
             }
             if (sub.isFile()) {
+                if (PartialDownload.isResumable(sub) && !PartialDownload.isExpired(sub)) {
+                    // Keep interrupted downloads so they can be resumed.
+                    continue;
+                }
                 sub.delete();
             } else {
                 if (sub.getName().equals(param.hash) || sub.getName().equals(param.originHash)) {
                     continue;
                 }
-                removeDirectory(sub);
+                // Staging directories of tasks in flight were skipped above, the rest
+                // were left by a crash or kill before publishing.
+                Trash.move(sub);
             }
         }
+        // Unreferenced blobs are collected once the trash is gone.
+        Trash.empty(root);
     }
 
-    @Override
-    protected Void doInBackground(DownloadTaskParams... params) {
-        int taskType = params[0].type;
-        try {
-            switch (taskType) {
-                case DownloadTaskParams.TASK_TYPE_PATCH_FULL:
-                    doFullPatch(params[0]);
-                    break;
-                case DownloadTaskParams.TASK_TYPE_PATCH_FROM_APK:
-                    doPatchFromApk(params[0]);
-                    break;
-                case DownloadTaskParams.TASK_TYPE_PATCH_FROM_PPK:
-                    doPatchFromPpk(params[0]);
-                    break;
-                case DownloadTaskParams.TASK_TYPE_CLEANUP:
-                    doCleanUp(params[0]);
-                    break;
-                case DownloadTaskParams.TASK_TYPE_PLAIN_DOWNLOAD:
-                    downloadFile(params[0]);
-                    break;
-                default:
-                    break;
-            }
-            if (params[0].listener != null) {
-                params[0].listener.onDownloadCompleted(params[0]);
-            }
-        } catch (Throwable e) {
-            if (UpdateContext.DEBUG) {
-                e.printStackTrace();
-            }
-            switch (taskType) {
-                case DownloadTaskParams.TASK_TYPE_PATCH_FULL:
-                case DownloadTaskParams.TASK_TYPE_PATCH_FROM_APK:
-                case DownloadTaskParams.TASK_TYPE_PATCH_FROM_PPK:
-                    try {
-                        removeDirectory(params[0].unzipDirectory);
-                    } catch (IOException ioException) {
-                        ioException.printStackTrace();
-                    }
-                    break;
-                case DownloadTaskParams.TASK_TYPE_PLAIN_DOWNLOAD:
-//                    if (targetToClean.exists()) {
-                    params[0].targetFile.delete();
-//                    }
-                    break;
-                default:
-                    break;
+    private static boolean isInFlight(String name, DownloadTaskParams param) {
+        if (param.activeHashes == null) {
+            return false;
+        }
+        for (String hash : param.activeHashes) {
+            if (name.contains(hash)) {
+                return true;
             }
-            Log.e("pushy", "download task failed", e);
+        }
+        return false;
+    }
+
+    /**
+     * Network stage, run on the I/O lane.
+     */
+    void download() throws IOException {
+        switch (param.type) {
+            case DownloadTaskParams.TASK_TYPE_PATCH_FULL:
+                if (param.streamingUnzip) {
+                    downloadAndUnzip(param);
+                    unzipped = true;
+                    publish();
+                } else {
+                    downloadFile(param);
+                }
+                break;
+            case DownloadTaskParams.TASK_TYPE_PATCH_FROM_APK:
+            case DownloadTaskParams.TASK_TYPE_PATCH_FROM_PPK:
+            case DownloadTaskParams.TASK_TYPE_PLAIN_DOWNLOAD:
+                downloadFile(param);
+                break;
+            case DownloadTaskParams.TASK_TYPE_CLEANUP:
+                doCleanUp(param);
+                break;
+            default:
+                break;
+        }
+    }
+
+    boolean needsProcessing() {
+        switch (param.type) {
+            case DownloadTaskParams.TASK_TYPE_PATCH_FULL:
+                return !unzipped;
+            case DownloadTaskParams.TASK_TYPE_PATCH_FROM_APK:
+            case DownloadTaskParams.TASK_TYPE_PATCH_FROM_PPK:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Unzip and patch stage, run on the CPU lane.
+     */
+    void process() throws IOException, JSONException {
+        switch (param.type) {
+            case DownloadTaskParams.TASK_TYPE_PATCH_FULL:
+                doFullPatch(param);
+                break;
+            case DownloadTaskParams.TASK_TYPE_PATCH_FROM_APK:
+                doPatchFromApk(param);
+                break;
+            case DownloadTaskParams.TASK_TYPE_PATCH_FROM_PPK:
+                doPatchFromPpk(param);
+                break;
+            default:
+                return;
+        }
+        publish();
+    }
+
+    static File stagingDirectoryOf(File unzipDirectory) {
+        return new File(unzipDirectory.getParentFile(), "." + unzipDirectory.getName() + STAGING_SUFFIX);
+    }
 
-            if (params[0].listener != null) {
-                params[0].listener.onDownloadFailed(e);
+    static boolean isStaging(File file) {
+        return file.getName().startsWith(".") && file.getName().endsWith(STAGING_SUFFIX);
+    }
+
+    /**
+     * Versions are written into a hidden staging directory, so that
+     * {@code _update/<hash>} never exists half written.
+     */
+    private File beginStaging() throws IOException {
+        File staging = stagingDirectoryOf(param.unzipDirectory);
+        Trash.move(staging);
+        staging.mkdirs();
+        return staging;
+    }
+
+    /**
+     * Make the staged version durable with a single sync pass, then move it
+     * to its final name with a rename.
+     *
+     * A new version appears atomically. Replacing an existing one takes two
+     * renames: the old directory is first moved aside to a backup name and
+     * only trashed once the new one is in place. If the second rename fails
+     * the backup is moved back; if the process dies in between, the backup is
+     * restored by {@link UpdateContext#restoreBackup} or the next cleanup.
+     */
+    private void publish() throws IOException {
+        File staging = stagingDirectoryOf(param.unzipDirectory);
+        File root = param.unzipDirectory.getParentFile();
+        checkCancelled();
+        new AssetStore(root).ingest(staging);
+        FileSync.syncTree(staging);
+        checkCancelled();
+        File backup = null;
+        if (param.unzipDirectory.exists()) {
+            backup = UpdateContext.backupDirectoryOf(param.unzipDirectory);
+            Trash.move(backup);
+            if (!param.unzipDirectory.renameTo(backup)) {
+                throw new IOException("Failed to move aside " + param.unzipDirectory);
             }
         }
-        return null;
+        if (!staging.renameTo(param.unzipDirectory)) {
+            if (backup != null && !backup.renameTo(param.unzipDirectory)) {
+                Log.e("pushy", "Failed to restore " + param.unzipDirectory + " from " + backup);
+            }
+            throw new IOException("Failed to publish " + param.unzipDirectory);
+        }
+        FileSync.syncDirectory(root);
+        if (backup != null) {
+            Trash.move(backup);
+            Trash.empty(root);
+        }
+        if (UpdateContext.DEBUG) {
+            Log.d("RNUpdate", "Published " + param.unzipDirectory);
+        }
+    }
+
+    void onFailed(Throwable e) {
+        if (UpdateContext.DEBUG) {
+            e.printStackTrace();
+        }
+        switch (param.type) {
+            case DownloadTaskParams.TASK_TYPE_PATCH_FULL:
+            case DownloadTaskParams.TASK_TYPE_PATCH_FROM_APK:
+            case DownloadTaskParams.TASK_TYPE_PATCH_FROM_PPK:
+                try {
+                    // A published version is complete, only the staged files are garbage.
+                    Trash.move(stagingDirectoryOf(param.unzipDirectory));
+                    Trash.empty(param.unzipDirectory.getParentFile());
+                } catch (IOException ioException) {
+                    ioException.printStackTrace();
+                }
+                break;
+            case DownloadTaskParams.TASK_TYPE_PLAIN_DOWNLOAD:
+                param.targetFile.delete();
+                break;
+            default:
+                break;
+        }
+        Log.e("pushy", "download task failed", e);
     }
 
 }
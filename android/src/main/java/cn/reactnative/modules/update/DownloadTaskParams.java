@@ -1,6 +1,7 @@
 package cn.reactnative.modules.update;
 
 import java.io.File;
+import java.util.Set;
 
 /**
  * Created by tdzl2003 on 3/31/16.
@@ -18,8 +19,12 @@ class DownloadTaskParams {
     String      url;
     String      hash;
     String      originHash;
+    String      digest; // Expected sha256 of the downloaded file, in hex
     File        targetFile;
     File        unzipDirectory;
     File        originDirectory;
+    int         segments = 1;
+    boolean     streamingUnzip; // Unzip full packages while downloading
+    Set<String> activeHashes; // Hashes of jobs started before cleanup, kept by it
     UpdateContext.DownloadFileListener listener;
 }
@@ -0,0 +1,102 @@
+package cn.reactnative.modules.update;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Validates entry names against one extraction root.
+ *
+ * The root is canonicalized once. Names are checked lexically: no absolute
+ * paths, no {@code ..} segments. A symlink is the only way a lexically safe
+ * name could still escape the root, and no directory created by this context
+ * can be one, so the canonical path of an entry is only resolved when its
+ * parent directory was not created by this context.
+ *
+ * Not thread safe, resolve names before handing the files to workers.
+ */
+class ExtractionContext {
+    final File root;
+    private final String canonicalRoot;
+    // Relative paths of the directories this context has created itself.
+    private final Set<String> created = new HashSet<>();
+
+    ExtractionContext(File root) throws IOException {
+        this.root = root;
+        this.canonicalRoot = root.getCanonicalPath();
+    }
+
+    /**
+     * Lexically normalized form of {@code name}, with empty and {@code .}
+     * segments dropped.
+     *
+     * @throws SecurityException if the name is absolute, climbs up with
+     * {@code ..} or is empty
+     */
+    static String normalize(String name) {
+        if (name == null || name.startsWith("/") || name.startsWith("\\") || name.indexOf('\0') >= 0) {
+            throw new SecurityException("Illegal name: " + name);
+        }
+        StringBuilder normalized = new StringBuilder(name.length());
+        for (String segment : name.split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+            // Backslashes are plain characters here, but reject names meant as windows paths.
+            if (segment.equals("..") || segment.startsWith("..\\") || segment.endsWith("\\..")
+                    || segment.contains("\\..\\")) {
+                throw new SecurityException("Illegal name: " + name);
+            }
+            if (normalized.length() > 0) {
+                normalized.append('/');
+            }
+            normalized.append(segment);
+        }
+        if (normalized.length() == 0) {
+            throw new SecurityException("Illegal name: " + name);
+        }
+        return normalized.toString();
+    }
+
+    private static String parentOf(String normalized) {
+        int index = normalized.lastIndexOf('/');
+        return index < 0 ? "" : normalized.substring(0, index);
+    }
+
+    File resolve(String name) throws IOException {
+        String normalized = normalize(name);
+        File target = new File(canonicalRoot, normalized);
+        String parent = parentOf(normalized);
+        if (!parent.isEmpty() && !created.contains(parent)) {
+            // The parent was not made by us and could be a symlink.
+            if (!target.getCanonicalPath().startsWith(canonicalRoot + File.separator)) {
+                throw new SecurityException("Illegal name: " + name);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Create the directory for an already resolved name and its parents,
+     * remembering the ones that did not exist before.
+     */
+    void mkdirs(File directory) {
+        String path = directory.getPath();
+        if (path.length() <= canonicalRoot.length() || !path.startsWith(canonicalRoot + File.separator)) {
+            return;
+        }
+        String relative = path.substring(canonicalRoot.length() + 1);
+        if (created.contains(relative)) {
+            return;
+        }
+        int index = -1;
+        do {
+            index = relative.indexOf('/', index + 1);
+            String prefix = index < 0 ? relative : relative.substring(0, index);
+            if (!created.contains(prefix) && new File(canonicalRoot, prefix).mkdir()) {
+                created.add(prefix);
+            }
+        } while (index >= 0);
+    }
+}
@@ -0,0 +1,96 @@
+package cn.reactnative.modules.update;
+
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Durability barriers for a freshly written directory tree. Files are
+ * written without any fsync and flushed here in one pass at the end.
+ */
+class FileSync {
+
+    /**
+     * Flush every file and directory under {@code directory} to storage.
+     */
+    static void syncTree(File directory) throws IOException {
+        final List<File> files = new ArrayList<>();
+        List<File> directories = new ArrayList<>();
+        collect(directory, files, directories);
+
+        // fsync mostly waits on the device, let several be in flight at once.
+        final int workers = Math.min(ParallelWorkers.PARALLELISM, files.size());
+        if (workers > 0) {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                final int first = i;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        for (int j = first; j < files.size(); j += workers) {
+                            syncFile(files.get(j));
+                        }
+                        return null;
+                    }
+                });
+            }
+            ParallelWorkers.invokeAll(tasks);
+        }
+        for (File dir : directories) {
+            syncDirectory(dir);
+        }
+    }
+
+    private static void collect(File directory, List<File> files, List<File> directories) {
+        directories.add(directory);
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collect(child, files, directories);
+            } else if (!isLinked(child)) {
+                files.add(child);
+            }
+        }
+    }
+
+    /**
+     * Files hard-linked in from another version or the asset store were
+     * flushed when they were first written, only their new names need the
+     * directory sync.
+     */
+    private static boolean isLinked(File file) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        try {
+            return Posix.linkCount(file) > 1;
+        } catch (Posix.PosixException e) {
+            return false;
+        }
+    }
+
+    static void syncFile(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.getFD().sync();
+        }
+    }
+
+    /**
+     * Flush the entries of a directory, so files created or renamed in it
+     * survive a crash. Needs API 21, earlier versions rely on the file syncs.
+     */
+    static void syncDirectory(File directory) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        Posix.syncDirectory(directory);
+    }
+}
@@ -0,0 +1,129 @@
+package cn.reactnative.modules.update;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small bounded pool shared by the file operations of a running task
+ * (extracting, copying) that can be split into independent pieces.
+ */
+class ParallelWorkers {
+    static final int PARALLELISM = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static ExecutorService executor;
+    private static ForkJoinPool forkJoinPool;
+
+    /**
+     * Fixed size pool whose threads run at {@code priority} and exit after
+     * 30 seconds without work. Threads are named {@code name}, numbered if
+     * there are several.
+     */
+    static ThreadPoolExecutor newLane(final String name, final int threads, final int priority,
+                                      BlockingQueue<Runnable> queue) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                queue, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(priority);
+                        r.run();
+                    }
+                }, threads == 1 ? name : name + "-" + count.incrementAndGet());
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = newLane("pushy-worker", PARALLELISM, Process.THREAD_PRIORITY_BACKGROUND,
+                    new LinkedBlockingQueue<Runnable>());
+        }
+        return executor;
+    }
+
+    /**
+     * Work-stealing pool for recursive work such as directory walks. Needs API 21.
+     */
+    static synchronized ForkJoinPool forkJoinPool() {
+        if (forkJoinPool == null) {
+            forkJoinPool = new ForkJoinPool(PARALLELISM);
+        }
+        return forkJoinPool;
+    }
+
+    /**
+     * Run all tasks on the shared pool and wait for them. The first failure
+     * is rethrown after every task has finished.
+     */
+    static void invokeAll(List<? extends Callable<Void>> tasks) throws IOException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        if (tasks.size() == 1) {
+            call(tasks.get(0));
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<>();
+        for (Callable<Void> task : tasks) {
+            futures.add(executor().submit(task));
+        }
+        Throwable failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                if (failure == null) {
+                    failure = new IOException("Interrupted");
+                }
+            }
+        }
+        rethrow(failure);
+    }
+
+    private static void call(Callable<Void> task) throws IOException {
+        try {
+            task.call();
+        } catch (Exception e) {
+            rethrow(e);
+        }
+    }
+
+    static void rethrow(Throwable failure) throws IOException {
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IOException(failure);
+    }
+}
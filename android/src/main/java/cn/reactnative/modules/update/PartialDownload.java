@@ -0,0 +1,187 @@
+package cn.reactnative.modules.update;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download state kept next to the target file: the bytes received so far in
+ * {@code <target>.part} and a sidecar {@code <target>.part.meta} recording the
+ * ETag and the offset known to be on disk, so that an interrupted download can
+ * continue with a {@code Range} request validated by {@code If-Range}.
+ */
+class PartialDownload {
+    static final String PART_SUFFIX = ".part";
+    static final String META_SUFFIX = ".part.meta";
+
+    // How often the offset is persisted while downloading.
+    private static final long SAVE_INTERVAL = 1024 * 1024;
+    // Partial downloads untouched for longer than this are removed by cleanUp.
+    private static final long EXPIRE_MILLIS = TimeUnit.DAYS.toMillis(3);
+
+    final File target;
+    final File partFile;
+    final File metaFile;
+
+    String etag;
+    long offset;
+    private long savedOffset;
+
+    PartialDownload(File target) {
+        this.target = target;
+        this.partFile = new File(target.getPath() + PART_SUFFIX);
+        this.metaFile = new File(target.getPath() + META_SUFFIX);
+    }
+
+    /**
+     * Whether {@code file} belongs to a download that can be resumed: a part
+     * file with its sidecar, or a sidecar with its part file. A part without
+     * a sidecar has no ETag or offset to resume from.
+     */
+    static boolean isResumable(File file) {
+        String path = file.getPath();
+        String target;
+        if (path.endsWith(META_SUFFIX)) {
+            target = path.substring(0, path.length() - META_SUFFIX.length());
+        } else if (path.endsWith(PART_SUFFIX)) {
+            target = path.substring(0, path.length() - PART_SUFFIX.length());
+        } else {
+            return false;
+        }
+        return new File(target + PART_SUFFIX).exists() && new File(target + META_SUFFIX).exists();
+    }
+
+    static boolean isExpired(File file) {
+        return System.currentTimeMillis() - file.lastModified() > EXPIRE_MILLIS;
+    }
+
+    /**
+     * Strong validator usable with If-Range, or null. Weak ETags can not be
+     * used for sub-range requests.
+     */
+    static String strongEtag(String etag) {
+        if (etag == null || etag.isEmpty() || etag.startsWith("W/")) {
+            return null;
+        }
+        return etag;
+    }
+
+    void load() {
+        etag = null;
+        offset = 0;
+        if (!partFile.exists() || !metaFile.exists()) {
+            return;
+        }
+        try {
+            JSONObject meta = new JSONObject(new String(readMeta(), "UTF-8"));
+            etag = strongEtag(meta.optString("etag", null));
+            // Never trust bytes beyond what the sidecar has recorded as flushed.
+            offset = Math.min(meta.optLong("offset", 0), partFile.length());
+        } catch (IOException | JSONException e) {
+            if (UpdateContext.DEBUG) {
+                Log.d("RNUpdate", "Ignoring corrupt partial download " + metaFile);
+            }
+            etag = null;
+            offset = 0;
+        }
+        savedOffset = offset;
+    }
+
+    boolean canResume() {
+        return etag != null && offset > 0;
+    }
+
+    /**
+     * Continue at {@link #offset}, dropping any bytes written after the last
+     * recorded checkpoint.
+     */
+    void resume() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(partFile, "rw")) {
+            file.setLength(offset);
+        }
+    }
+
+    void restart(String etag) throws IOException {
+        if (partFile.exists() && !partFile.delete()) {
+            throw new IOException("Failed to delete " + partFile);
+        }
+        this.etag = etag;
+        this.offset = 0;
+        save(0);
+    }
+
+    boolean needsCheckpoint(long offset) {
+        return offset - savedOffset >= SAVE_INTERVAL;
+    }
+
+    /**
+     * Record that {@code offset} bytes are on disk. The caller must flush the
+     * part file before calling this.
+     */
+    void checkpoint(long offset) throws IOException {
+        if (needsCheckpoint(offset)) {
+            save(offset);
+        }
+    }
+
+    void complete() throws IOException {
+        if (target.exists()) {
+            target.delete();
+        }
+        if (!partFile.renameTo(target)) {
+            throw new IOException("Failed to rename " + partFile + " to " + target);
+        }
+        metaFile.delete();
+    }
+
+    void discard() {
+        partFile.delete();
+        metaFile.delete();
+        etag = null;
+        offset = 0;
+    }
+
+    private void save(long offset) throws IOException {
+        this.offset = offset;
+        this.savedOffset = offset;
+        if (etag == null) {
+            // Nothing to validate a later Range request against.
+            metaFile.delete();
+            return;
+        }
+        try {
+            JSONObject meta = new JSONObject();
+            meta.put("etag", etag);
+            meta.put("offset", offset);
+            try (FileOutputStream out = new FileOutputStream(metaFile)) {
+                out.write(meta.toString().getBytes("UTF-8"));
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private byte[] readMeta() throws IOException {
+        try (InputStream in = new FileInputStream(metaFile)) {
+            byte[] bytes = new byte[(int) metaFile.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package cn.reactnative.modules.update;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * The file system calls of {@link Os}, which exists from API 21 on. Every
+ * reference to {@code android.system} stays in this class, so the classes
+ * calling it still verify on older versions; they check the version first.
+ */
+@RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+class Posix {
+
+    /**
+     * A failed call. Callers on any API level catch it, so it must not
+     * mention {@code android.system} itself.
+     */
+    static class PosixException extends IOException {
+        final boolean notFound;
+
+        PosixException(String message, boolean notFound, Throwable cause) {
+            super(message, cause);
+            this.notFound = notFound;
+        }
+    }
+
+    private static PosixException failure(String message, ErrnoException e) {
+        return new PosixException(message, e.errno == OsConstants.ENOENT, e);
+    }
+
+    static long linkCount(File file) throws PosixException {
+        try {
+            return Os.lstat(file.getAbsolutePath()).st_nlink;
+        } catch (ErrnoException e) {
+            throw failure("Failed to stat " + file, e);
+        }
+    }
+
+    static void link(File from, File to) throws PosixException {
+        try {
+            Os.link(from.getAbsolutePath(), to.getAbsolutePath());
+        } catch (ErrnoException e) {
+            throw failure("Failed to link " + from + " to " + to, e);
+        }
+    }
+
+    /**
+     * Unlike {@link File#renameTo}, replaces an existing {@code to}.
+     */
+    static void rename(File from, File to) throws PosixException {
+        try {
+            Os.rename(from.getAbsolutePath(), to.getAbsolutePath());
+        } catch (ErrnoException e) {
+            throw failure("Failed to rename " + from + " to " + to, e);
+        }
+    }
+
+    static void syncDirectory(File directory) throws PosixException {
+        try {
+            FileDescriptor fd = Os.open(directory.getAbsolutePath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+        } catch (ErrnoException e) {
+            throw failure("Failed to sync " + directory, e);
+        }
+    }
+
+    static void fallocate(FileDescriptor fd, long size) throws PosixException {
+        try {
+            Os.posix_fallocate(fd, 0, size);
+        } catch (ErrnoException e) {
+            throw failure("Failed to allocate " + size + " bytes", e);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package cn.reactnative.modules.update;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Rate limits progress events. An update is reported only once both enough
+ * time and enough bytes have passed since the last one, updates arriving
+ * while one is still waiting to be delivered are merged into it, and events
+ * are delivered on a background thread instead of the UI thread.
+ *
+ * A total of -1 means the length is unknown and is passed on as such.
+ */
+class ProgressReporter {
+    interface Listener {
+        void onProgress(long received, long total);
+    }
+
+    private static final long MIN_INTERVAL_MILLIS = 100;
+    private static final long MIN_BYTES = 64 * 1024;
+
+    private static ExecutorService executor;
+
+    private final Listener listener;
+    private long lastTime = 0;
+    private long lastReceived = -1;
+    private long received;
+    private long total;
+    private boolean pending = false;
+
+    ProgressReporter(Listener listener) {
+        this.listener = listener;
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = ParallelWorkers.newLane("pushy-progress", 1, Process.THREAD_PRIORITY_BACKGROUND,
+                    new LinkedBlockingQueue<Runnable>());
+        }
+        return executor;
+    }
+
+    /**
+     * Record progress, may be called from several threads.
+     */
+    synchronized void update(long received, long total) {
+        if (received < this.received) {
+            // A late update from another segment thread.
+            return;
+        }
+        this.received = received;
+        this.total = total;
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastTime < MIN_INTERVAL_MILLIS || received - lastReceived < MIN_BYTES) {
+            return;
+        }
+        lastTime = now;
+        schedule();
+    }
+
+    /**
+     * Report the final state regardless of the thresholds.
+     */
+    synchronized void finish(long received, long total) {
+        this.received = received;
+        this.total = total;
+        schedule();
+    }
+
+    private void schedule() {
+        if (pending) {
+            // The waiting event will carry the latest values.
+            return;
+        }
+        pending = true;
+        executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        });
+    }
+
+    private void deliver() {
+        long received;
+        long total;
+        synchronized (this) {
+            pending = false;
+            if (this.received == lastReceived) {
+                return;
+            }
+            received = this.received;
+            total = this.total;
+            lastReceived = received;
+        }
+        listener.onProgress(received, total);
+    }
+}
@@ -1,16 +1,28 @@
 package cn.reactnative.modules.update;
 
+import android.os.Build;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 
 public class SafeZipFile extends ZipFile {
@@ -19,8 +31,6 @@ public class SafeZipFile extends ZipFile {
         super(file);
     }
 
-    private static final int BUFFER_SIZE = 8192;
-
     @Override
     public Enumeration<? extends ZipEntry> entries() {
         return new SafeZipEntryIterator(super.entries());
@@ -43,20 +53,27 @@ public class SafeZipFile extends ZipFile {
         public ZipEntry nextElement() {
             ZipEntry entry = delegate.nextElement();
             if (null != entry) {
-                String name = entry.getName();
-                /**
-                 * avoid ZipperDown
-                 */
-                if (null != name && (name.contains("../") || name.contains("..\\"))) {
-                    throw new SecurityException("illegal entry: " + name);
-                }
+                checkEntryName(entry.getName());
             }
             return entry;
         }
     }
 
-    public void unzipToPath(ZipEntry ze, File targetPath) throws IOException {
-        String name = ze.getName();
+    private static void checkEntryName(String name) {
+        /**
+         * avoid ZipperDown
+         */
+        if (null != name && (name.contains("../") || name.contains("..\\"))) {
+            throw new SecurityException("illegal entry: " + name);
+        }
+    }
+
+    /**
+     * Resolve an entry name under {@code targetPath}, rejecting names that
+     * would escape it.
+     */
+    static File resolveEntry(String name, File targetPath) throws IOException {
+        checkEntryName(name);
         File target = new File(targetPath, name);
 
         // Fixing a Zip Path Traversal Vulnerability
@@ -65,6 +82,37 @@ public class SafeZipFile extends ZipFile {
         if (!canonicalPath.startsWith(targetPath.getCanonicalPath() + File.separator)) {
             throw new SecurityException("Illegal name: " + name);
         }
+        return target;
+    }
+
+    /**
+     * Extract every entry of a zip stream under {@code targetPath} as the
+     * bytes arrive, with the same checks as {@link #unzipToPath}.
+     */
+    static void unzipStreamToPath(InputStream inputStream, File targetPath) throws IOException {
+        ZipInputStream zis = new ZipInputStream(inputStream);
+        ExtractionContext extraction = new ExtractionContext(targetPath);
+        ZipEntry ze;
+        while ((ze = zis.getNextEntry()) != null) {
+            String name = ze.getName();
+            File target = extraction.resolve(name);
+
+            if (UpdateContext.DEBUG) {
+                Log.d("RNUpdate", "Unzipping " + name);
+            }
+
+            if (ze.isDirectory()) {
+                extraction.mkdirs(target);
+                continue;
+            }
+            extraction.mkdirs(target.getParentFile());
+            writeEntry(zis, target, ze.getSize());
+        }
+    }
+
+    public void unzipToPath(ZipEntry ze, File targetPath) throws IOException {
+        String name = ze.getName();
+        File target = resolveEntry(name, targetPath);
 
         if (UpdateContext.DEBUG) {
             Log.d("RNUpdate", "Unzipping " + name);
@@ -77,17 +125,136 @@ public class SafeZipFile extends ZipFile {
         unzipToFile(ze, target);
     }
 
+    public void extractAll(File targetPath, Executor executor) throws IOException {
+        extractAll(targetPath, Collections.<String>emptySet(), executor);
+    }
+
+    public void extractAll(File targetPath, Set<String> skip, Executor executor) throws IOException {
+        extractAll(targetPath, skip, executor, null);
+    }
+
+    /**
+     * Extract every entry except those named in {@code skip} under
+     * {@code targetPath}, inflating up to {@link ParallelWorkers#PARALLELISM}
+     * entries at a time on {@code executor}. All names are validated and all
+     * directories created before anything is written. Workers poll
+     * {@code cancellation}, if given, before each entry.
+     */
+    void extractAll(File targetPath, Set<String> skip, Executor executor, final Cancellation cancellation) throws IOException {
+        final List<ZipEntry> files = new ArrayList<>();
+        final List<File> targets = new ArrayList<>();
+        ExtractionContext extraction = new ExtractionContext(targetPath);
+        Enumeration<? extends ZipEntry> entries = entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry ze = entries.nextElement();
+            String name = ze.getName();
+            if (skip.contains(name)) {
+                continue;
+            }
+            File target = extraction.resolve(name);
+            if (ze.isDirectory()) {
+                extraction.mkdirs(target);
+                continue;
+            }
+            extraction.mkdirs(target.getParentFile());
+            files.add(ze);
+            targets.add(target);
+        }
+
+        int workers = Math.min(ParallelWorkers.PARALLELISM, files.size());
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(workers);
+        for (int i = 0; i < workers; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int index;
+                        while (failure.get() == null && (index = next.getAndIncrement()) < files.size()) {
+                            if (cancellation != null) {
+                                cancellation.check();
+                            }
+                            if (UpdateContext.DEBUG) {
+                                Log.d("RNUpdate", "Unzipping " + files.get(index).getName());
+                            }
+                            unzipToFile(files.get(index), targets.get(index));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, new IOException("Interrupted while unzipping"));
+        }
+        ParallelWorkers.rethrow(failure.get());
+    }
+
     public void unzipToFile(ZipEntry ze, File target) throws IOException {
-        try (InputStream inputStream = getInputStream(ze)) {
-            try (BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(target));
-                 BufferedInputStream input = new BufferedInputStream(inputStream)) {
-                byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream input = getInputStream(ze)) {
+            writeEntry(input, target, ze.getSize());
+        }
+    }
+
+    private static void writeEntry(InputStream input, File target, long size) throws IOException {
+        if (target.exists()) {
+            // Write a new file rather than through a link shared with another version.
+            target.delete();
+        }
+        try (FileOutputStream output = new FileOutputStream(target)) {
+            FileChannel channel = output.getChannel();
+            if (size > 0) {
+                preallocate(output, size);
+            }
+            ByteBuffer buffer = BufferPool.direct();
+            // ART backs direct buffers with a pinned array, fill it in place when we can.
+            ReadableByteChannel source = buffer.hasArray() ? null : Channels.newChannel(input);
+            long written = 0;
+            while (true) {
+                buffer.clear();
                 int n;
-                while ((n = input.read(buffer, 0, BUFFER_SIZE)) >= 0) {
-                    output.write(buffer, 0, n);
+                if (source == null) {
+                    n = input.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+                    if (n > 0) {
+                        buffer.position(n);
+                    }
+                } else {
+                    n = source.read(buffer);
                 }
+                if (n < 0) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+            }
+            if (size > 0 && written != size) {
+                // Do not leave preallocated space behind a short entry.
+                channel.truncate(written);
             }
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Reserve the whole file in one go so flash storage can lay it out
+     * contiguously, instead of growing it write by write.
+     */
+    private static void preallocate(FileOutputStream output, long size) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        try {
+            Posix.fallocate(output.getFD(), size);
+        } catch (IOException e) {
+            // Not supported by every filesystem, the writes will allocate as usual.
+        }
+    }
+
+}
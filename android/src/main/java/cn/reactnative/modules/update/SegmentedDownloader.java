@@ -0,0 +1,175 @@
+package cn.reactnative.modules.update;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * Downloads a file as several byte ranges in parallel, each segment written
+ * with positional writes into a preallocated part file.
+ */
+class SegmentedDownloader {
+    interface ProgressListener {
+        void onProgress(long received, long total);
+    }
+
+    // Below this size per segment the extra connections are not worth it.
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OkHttpClient client;
+    private final String url;
+    private final File target;
+    private final int segments;
+    private final ProgressListener listener;
+    private final List<Call> calls = new ArrayList<>();
+    private boolean cancelled = false;
+
+    SegmentedDownloader(OkHttpClient client, String url, File target, int segments, ProgressListener listener) {
+        this.client = client;
+        this.url = url;
+        this.target = target;
+        this.segments = segments;
+        this.listener = listener;
+    }
+
+    /**
+     * @return false if the server can not serve ranges, has no strong ETag
+     * to keep the segments consistent, or the file is too small to split, in
+     * which case nothing has been written.
+     */
+    boolean download() throws IOException {
+        final long total;
+        final String etag;
+        try (Response response = client.newCall(new Request.Builder().url(url).head()
+                .header("Accept-Encoding", "identity").build()).execute()) {
+            if (response.code() > 299 || !"bytes".equals(response.header("Accept-Ranges"))) {
+                return false;
+            }
+            try {
+                total = Long.parseLong(response.header("Content-Length", "-1"));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            etag = PartialDownload.strongEtag(response.header("ETag"));
+        }
+        if (etag == null) {
+            // Without it the segments could come from different versions of the file.
+            return false;
+        }
+        final int count = (int) Math.min(segments, total / MIN_SEGMENT_SIZE);
+        if (count < 2) {
+            return false;
+        }
+
+        if (UpdateContext.DEBUG) {
+            Log.d("RNUpdate", "Downloading " + url + " in " + count + " segments");
+        }
+
+        PartialDownload partial = new PartialDownload(target);
+        partial.discard();
+
+        final AtomicLong received = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(count);
+        try (RandomAccessFile file = new RandomAccessFile(partial.partFile, "rw")) {
+            file.setLength(total);
+            final FileChannel channel = file.getChannel();
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                final long start = total * i / count;
+                final long end = total * (i + 1) / count - 1;
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        downloadSegment(start, end, etag, channel, received, total);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while downloading " + url);
+                } catch (ExecutionException e) {
+                    cancel();
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+        } catch (IOException | Error e) {
+            partial.discard();
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+        partial.complete();
+        return true;
+    }
+
+    private void downloadSegment(long start, long end, String etag, FileChannel channel, AtomicLong received, long total) throws IOException {
+        Request request = new Request.Builder().url(url)
+                .header("Range", "bytes=" + start + "-" + end)
+                .header("If-Range", etag)
+                .build();
+        Call call = client.newCall(request);
+        synchronized (calls) {
+            calls.add(call);
+            if (cancelled) {
+                call.cancel();
+            }
+        }
+        try (Response response = call.execute()) {
+            if (response.code() != 206) {
+                throw new Error("Server return code " + response.code() + " for range " + start + "-" + end);
+            }
+            BufferedSource source = response.body().source();
+            byte[] bytes = new byte[BUFFER_SIZE];
+            long position = start;
+            int count;
+            while (position <= end && (count = source.read(bytes)) != -1) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, count);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                listener.onProgress(received.addAndGet(count), total);
+            }
+            if (position != end + 1) {
+                throw new Error("Unexpected eof while reading segment " + start + "-" + end);
+            }
+        }
+    }
+
+    void cancel() {
+        synchronized (calls) {
+            cancelled = true;
+            for (Call call : calls) {
+                call.cancel();
+            }
+        }
+    }
+}
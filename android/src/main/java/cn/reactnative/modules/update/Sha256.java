@@ -0,0 +1,50 @@
+package cn.reactnative.modules.update;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 helpers shared by download verification and the asset store.
+ */
+class Sha256 {
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+    }
+
+    static void update(MessageDigest digest, File file) throws IOException {
+        byte[] buffer = BufferPool.bytes();
+        int count;
+        try (InputStream in = new FileInputStream(file)) {
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        }
+    }
+
+    static String hex(MessageDigest digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    static String of(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, file);
+        return hex(digest);
+    }
+
+    static boolean matches(MessageDigest digest, String expected) {
+        return hex(digest).equalsIgnoreCase(expected);
+    }
+}
@@ -0,0 +1,106 @@
+package cn.reactnative.modules.update;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Deferred removal of old versions. Removing a directory is a rename to a
+ * {@code .trash-} name in the same parent, which is instant; the actual
+ * deletion happens later on a lowest priority thread, paced so it does not
+ * compete with the app for storage, and not at all during the first seconds
+ * after launch.
+ */
+class Trash {
+    static final String PREFIX = ".trash-";
+
+    // The app does most of its own I/O right after launch.
+    private static final long LAUNCH_QUIET_MILLIS = 10000;
+    // Pause between batches of deleted files.
+    private static final int BATCH_SIZE = 64;
+    private static final long BATCH_PAUSE_MILLIS = 20;
+
+    private static final long launchTime = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+            ? Process.getStartElapsedRealtime() : SystemClock.elapsedRealtime();
+
+    private static ThreadPoolExecutor executor;
+    private static int deleted;
+
+    /**
+     * Take {@code file} out of its parent right away. Falls back to deleting
+     * it in place if it can not be renamed.
+     */
+    static void move(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        File trash = new File(file.getParentFile(), PREFIX + file.getName() + "-" + System.nanoTime());
+        if (!file.renameTo(trash)) {
+            DownloadTask.removeDirectory(file);
+        }
+    }
+
+    static boolean isTrash(File file) {
+        return file.getName().startsWith(PREFIX);
+    }
+
+    /**
+     * Delete everything trashed under {@code root} in the background, then
+     * drop the blobs no version links to any more.
+     */
+    static synchronized void empty(final File root) {
+        if (executor == null) {
+            executor = ParallelWorkers.newLane("pushy-trash", 1, Process.THREAD_PRIORITY_LOWEST,
+                    new LinkedBlockingQueue<Runnable>());
+        }
+        if (!executor.getQueue().isEmpty()) {
+            // A pass is already waiting and will pick up this trash as well.
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long quiet = launchTime + LAUNCH_QUIET_MILLIS - SystemClock.elapsedRealtime();
+                    if (quiet > 0) {
+                        Thread.sleep(quiet);
+                    }
+                    File[] files = root.listFiles();
+                    if (files != null) {
+                        for (File file : files) {
+                            if (isTrash(file)) {
+                                delete(file);
+                            }
+                        }
+                    }
+                    new AssetStore(root).collectGarbage();
+                } catch (InterruptedException e) {
+                    // Whatever is left is picked up by the next pass.
+                }
+            }
+        });
+    }
+
+    private static void delete(File file) throws InterruptedException {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    delete(f);
+                }
+            }
+        }
+        if (!file.delete() && UpdateContext.DEBUG) {
+            Log.d("RNUpdate", "Failed to delete " + file);
+        }
+        if (++deleted % BATCH_SIZE == 0) {
+            Thread.sleep(BATCH_PAUSE_MILLIS);
+        }
+    }
+}
@@ -6,29 +6,46 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Trace;
 import android.util.Log;
 
 import com.facebook.react.ReactInstanceManager;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 
 import java.io.File;
 
 public class UpdateContext {
     private Context context;
     private File rootDir;
-    private Executor executor;
 
     public static boolean DEBUG = false;
     private static ReactInstanceManager mReactInstanceManager;
     private static boolean isUsingBundleUrl = false;
 
+    private static OkHttpClient httpClient;
+    private static boolean customHttpClient = false;
+    private static int maxIdleConnections = 5;
+    private static long keepAliveDurationMillis = TimeUnit.MINUTES.toMillis(5);
+    private static int downloadSegments = 1;
+    private static boolean streamingUnzip = false;
+    private static UpdateJobScheduler scheduler;
+    private static UpdateContext instance;
+    private static String packageVersion;
+    private static volatile StartupTraceListener startupTraceListener;
+
+    // Version to launch without any further checks, kept only while no rollback decision is pending.
+    private static final String LAUNCH_RECORD = "launchRecord";
+
     public UpdateContext(Context context) {
         this.context = context;
-        this.executor = Executors.newSingleThreadExecutor();
 
         this.rootDir = new File(context.getFilesDir(), "_update");
 
@@ -49,11 +66,56 @@ public class UpdateContext {
         }
     }
 
+    /**
+     * Process-wide instance, created on first use. Prefer it over the
+     * constructor, which reads preferences and checks the package version.
+     */
+    public static synchronized UpdateContext getInstance(Context context) {
+        if (instance == null) {
+            instance = new UpdateContext(context.getApplicationContext());
+        }
+        return instance;
+    }
+
     public String getRootDir() {
         return rootDir.toString();
     }
 
     public String getPackageVersion() {
+        synchronized (UpdateContext.class) {
+            if (packageVersion == null) {
+                packageVersion = readPackageVersion();
+            }
+            return packageVersion;
+        }
+    }
+
+    /**
+     * Asking PackageManager is a binder call, so its answer is kept and only
+     * asked again once the installed APK has been replaced.
+     */
+    private String readPackageVersion() {
+        File apk = new File(context.getPackageCodePath());
+        String path = apk.getAbsolutePath();
+        long mtime = apk.lastModified();
+        SharedPreferences cache = context.getSharedPreferences("update_package", Context.MODE_PRIVATE);
+        String version = cache.getString("versionName", null);
+        if (version != null && path.equals(cache.getString("codePath", null))
+                && mtime == cache.getLong("codeMtime", 0)) {
+            return version;
+        }
+        version = queryPackageVersion();
+        if (version != null) {
+            cache.edit()
+                    .putString("codePath", path)
+                    .putLong("codeMtime", mtime)
+                    .putString("versionName", version)
+                    .apply();
+        }
+        return version;
+    }
+
+    private String queryPackageVersion() {
         PackageManager pm = context.getPackageManager();
         PackageInfo pi = null;
         try {
@@ -73,20 +135,43 @@ public class UpdateContext {
         return isUsingBundleUrl;
     }
 
+    public interface StartupTraceListener {
+        /**
+         * @param fromLaunchRecord whether the url came from the launch record
+         *                         rather than the full version checks
+         */
+        void onBundleUrlResolved(String bundleUrl, boolean fromLaunchRecord, long durationNanos);
+    }
+
+    /**
+     * Report how getBundleUrl resolved the bundle and how long it took.
+     * The resolution also shows as a "pushy.getBundleUrl" systrace section.
+     */
+    public static void setStartupTraceListener(StartupTraceListener listener) {
+        startupTraceListener = listener;
+    }
+
     public interface DownloadFileListener {
         void onDownloadCompleted(DownloadTaskParams params);
         void onDownloadFailed(Throwable error);
     }
 
     public void downloadFullUpdate(String url, String hash, DownloadFileListener listener) {
+        downloadFullUpdate(url, hash, null, listener);
+    }
+
+    public void downloadFullUpdate(String url, String hash, String digest, DownloadFileListener listener) {
         DownloadTaskParams params = new DownloadTaskParams();
         params.type = DownloadTaskParams.TASK_TYPE_PATCH_FULL;
         params.url = url;
         params.hash = hash;
+        params.digest = digest;
+        params.segments = downloadSegments;
+        params.streamingUnzip = streamingUnzip;
         params.listener = listener;
         params.targetFile = new File(rootDir, hash + ".ppk");
         params.unzipDirectory = new File(rootDir, hash);
-        new DownloadTask(context).executeOnExecutor(this.executor, params);
+        getScheduler().submit(new DownloadTask(context, params), UpdateJobScheduler.PRIORITY_USER_VISIBLE);
     }
 
     public void downloadFile(String url, String hash, String fileName, DownloadFileListener listener) {
@@ -94,6 +179,7 @@ public class UpdateContext {
         params.type = DownloadTaskParams.TASK_TYPE_PLAIN_DOWNLOAD;
         params.url = url;
         params.hash = hash;
+        params.segments = downloadSegments;
         params.listener = listener;
 
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N && fileName.equals("update.apk")) {
@@ -104,36 +190,47 @@ public class UpdateContext {
 
         }
 //        params.unzipDirectory = new File(rootDir, hash);
-        new DownloadTask(context).executeOnExecutor(this.executor, params);
+        getScheduler().submit(new DownloadTask(context, params), UpdateJobScheduler.PRIORITY_USER_VISIBLE);
     }
 
     public void downloadPatchFromApk(String url, String hash, DownloadFileListener listener) {
+        downloadPatchFromApk(url, hash, null, listener);
+    }
+
+    public void downloadPatchFromApk(String url, String hash, String digest, DownloadFileListener listener) {
         DownloadTaskParams params = new DownloadTaskParams();
         params.type = DownloadTaskParams.TASK_TYPE_PATCH_FROM_APK;
         params.url = url;
         params.hash = hash;
+        params.digest = digest;
         params.listener = listener;
         params.targetFile = new File(rootDir, hash + ".apk.patch");
         params.unzipDirectory = new File(rootDir, hash);
-        new DownloadTask(context).executeOnExecutor(this.executor, params);
+        getScheduler().submit(new DownloadTask(context, params), UpdateJobScheduler.PRIORITY_USER_VISIBLE);
     }
 
     public void downloadPatchFromPpk(String url, String hash, String originHash, DownloadFileListener listener) {
+        downloadPatchFromPpk(url, hash, originHash, null, listener);
+    }
+
+    public void downloadPatchFromPpk(String url, String hash, String originHash, String digest, DownloadFileListener listener) {
         DownloadTaskParams params = new DownloadTaskParams();
         params.type = DownloadTaskParams.TASK_TYPE_PATCH_FROM_PPK;
         params.url = url;
         params.hash = hash;
+        params.digest = digest;
         params.originHash = originHash;
         params.listener = listener;
         params.targetFile = new File(rootDir, originHash + "-" + hash + ".ppk.patch");
         params.unzipDirectory = new File(rootDir, hash);
         params.originDirectory = new File(rootDir, originHash);
-        new DownloadTask(context).executeOnExecutor(this.executor, params);
+        getScheduler().submit(new DownloadTask(context, params), UpdateJobScheduler.PRIORITY_USER_VISIBLE);
     }
 
     private SharedPreferences sp;
 
     public void switchVersion(String hash) {
+        // Versions are renamed into place only once complete and synced.
         if (!new File(rootDir, hash+"/index.bundlejs").exists()) {
             throw new Error("Bundle version " + hash + " not found.");
         }
@@ -146,6 +243,8 @@ public class UpdateContext {
         editor.putBoolean("firstTime", true);
         editor.putBoolean("firstTimeOk", false);
         editor.putString("rolledBackVersion", null);
+        // The first launch of a new version needs no rollback check.
+        editor.putString(LAUNCH_RECORD, hash);
         editor.apply();
     }
 
@@ -180,6 +279,7 @@ public class UpdateContext {
             editor.remove("lastVersion");
             editor.remove("hash_" + lastVersion);
         }
+        putLaunchRecord(editor, curVersion);
         editor.apply();
 
         this.cleanUp();
@@ -188,6 +288,10 @@ public class UpdateContext {
     public void clearFirstTime() {
         SharedPreferences.Editor editor = sp.edit();
         editor.putBoolean("firstTime", false);
+        if (!sp.getBoolean("firstTimeOk", true)) {
+            // The next launch must decide whether to roll back.
+            editor.remove(LAUNCH_RECORD);
+        }
         editor.apply();
 
         this.cleanUp();
@@ -202,6 +306,74 @@ public class UpdateContext {
     }
 
 
+    /**
+     * Configure the connection pool of the built-in download client. A client
+     * set with {@link #setHttpClient} keeps its own pool.
+     */
+    public static synchronized void setConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit) {
+        UpdateContext.maxIdleConnections = maxIdleConnections;
+        UpdateContext.keepAliveDurationMillis = timeUnit.toMillis(keepAliveDuration);
+        if (!customHttpClient) {
+            // Rebuilt with the new pool on next use.
+            httpClient = null;
+        }
+    }
+
+    /**
+     * Download full packages and apks as up to {@code segments} parallel
+     * ranges when the server supports it. 1 (the default) disables it.
+     */
+    public static void setDownloadSegments(int segments) {
+        downloadSegments = Math.max(1, segments);
+    }
+
+    /**
+     * Extract full packages from the network stream as they arrive instead of
+     * writing the .ppk to disk and unzipping it afterwards. Disabled by default.
+     */
+    public static void setStreamingUnzip(boolean enabled) {
+        streamingUnzip = enabled;
+    }
+
+    private static synchronized UpdateJobScheduler getScheduler() {
+        if (scheduler == null) {
+            scheduler = new UpdateJobScheduler();
+        }
+        return scheduler;
+    }
+
+    /**
+     * Cancel the queued or running download of {@code hash}.
+     *
+     * @return whether there was such a download
+     */
+    public boolean cancelDownload(String hash) {
+        return getScheduler().cancel(hash);
+    }
+
+    /**
+     * Use a custom client (e.g. with app interceptors) for all downloads.
+     */
+    public static synchronized void setHttpClient(OkHttpClient client) {
+        httpClient = client;
+        customHttpClient = client != null;
+    }
+
+    /**
+     * Process-wide client shared by every download, so retries and
+     * diff/pdiff/full fallbacks reuse warm connections to the same CDN.
+     */
+    public static synchronized OkHttpClient getHttpClient() {
+        if (httpClient == null) {
+            httpClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveDurationMillis, TimeUnit.MILLISECONDS))
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .retryOnConnectionFailure(true)
+                    .build();
+        }
+        return httpClient;
+    }
+
     public static void setCustomInstanceManager(ReactInstanceManager instanceManager) {
         mReactInstanceManager = instanceManager;
     }
@@ -211,11 +383,11 @@ public class UpdateContext {
     }
 
     public static String getBundleUrl(Context context) {
-        return new UpdateContext(context.getApplicationContext()).getBundleUrl();
+        return getInstance(context).getBundleUrl();
     }
 
     public static String getBundleUrl(Context context, String defaultAssetsUrl) {
-        return new UpdateContext(context.getApplicationContext()).getBundleUrl(defaultAssetsUrl);
+        return getInstance(context).getBundleUrl(defaultAssetsUrl);
     }
 
     public String getBundleUrl() {
@@ -224,6 +396,43 @@ public class UpdateContext {
 
     public String getBundleUrl(String defaultAssetsUrl) {
         isUsingBundleUrl = true;
+        long start = System.nanoTime();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection("pushy.getBundleUrl");
+        }
+        try {
+            // A recorded launch needs no rollback logic, only one check that it is still there.
+            String launchVersion = sp.getString(LAUNCH_RECORD, null);
+            if (launchVersion != null) {
+                File bundleFile = new File(rootDir, launchVersion + "/index.bundlejs");
+                if (bundleFile.exists()) {
+                    String bundleUrl = bundleFile.toString();
+                    traceBundleUrl(bundleUrl, true, start);
+                    return bundleUrl;
+                }
+                Log.e("getBundleUrl", "Bundle version " + launchVersion + " not found.");
+                SharedPreferences.Editor editor = sp.edit();
+                editor.remove(LAUNCH_RECORD);
+                editor.apply();
+            }
+            String bundleUrl = resolveBundleUrl(defaultAssetsUrl);
+            traceBundleUrl(bundleUrl, false, start);
+            return bundleUrl;
+        } finally {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                Trace.endSection();
+            }
+        }
+    }
+
+    private static void traceBundleUrl(String bundleUrl, boolean fromLaunchRecord, long start) {
+        StartupTraceListener listener = startupTraceListener;
+        if (listener != null) {
+            listener.onBundleUrlResolved(bundleUrl, fromLaunchRecord, System.nanoTime() - start);
+        }
+    }
+
+    private String resolveBundleUrl(String defaultAssetsUrl) {
         String currentVersion = getCurrentVersion();
         if (currentVersion == null) {
             return defaultAssetsUrl;
@@ -238,17 +447,59 @@ public class UpdateContext {
 
         while (currentVersion != null) {
             File bundleFile = new File(rootDir, currentVersion+"/index.bundlejs");
+            if (!bundleFile.exists() && restoreBackup(backupDirectoryOf(new File(rootDir, currentVersion)))) {
+                Log.w("getBundleUrl", "Bundle version " + currentVersion + " restored from backup.");
+            }
             if (!bundleFile.exists()) {
                 Log.e("getBundleUrl", "Bundle version " + currentVersion + " not found.");
                 currentVersion = this.rollBack();
                 continue;
             }
+            if (sp.getBoolean("firstTimeOk", true)) {
+                SharedPreferences.Editor editor = sp.edit();
+                putLaunchRecord(editor, currentVersion);
+                editor.apply();
+            }
             return bundleFile.toString();
         }
 
         return defaultAssetsUrl;
     }
 
+    private static final String BACKUP_SUFFIX = ".old";
+
+    /**
+     * Where a published version is moved aside while a new copy replaces it.
+     */
+    static File backupDirectoryOf(File versionDirectory) {
+        return new File(versionDirectory.getParentFile(), "." + versionDirectory.getName() + BACKUP_SUFFIX);
+    }
+
+    static boolean isBackup(File file) {
+        String name = file.getName();
+        return name.startsWith(".") && name.endsWith(BACKUP_SUFFIX);
+    }
+
+    /**
+     * Move a backup left by an interrupted replace back to its version
+     * directory, unless that directory exists again.
+     *
+     * @return whether the backup now is the version directory
+     */
+    static boolean restoreBackup(File backup) {
+        String name = backup.getName();
+        File versionDirectory = new File(backup.getParentFile(), name.substring(1, name.length() - BACKUP_SUFFIX.length()));
+        return backup.exists() && !versionDirectory.exists() && backup.renameTo(versionDirectory);
+    }
+
+    private static void putLaunchRecord(SharedPreferences.Editor editor, String version) {
+        if (version == null) {
+            editor.remove(LAUNCH_RECORD);
+        } else {
+            editor.putString(LAUNCH_RECORD, version);
+        }
+    }
+
     private String rollBack() {
         String lastVersion = sp.getString("lastVersion", null);
         String currentVersion = sp.getString("currentVersion", null);
@@ -261,6 +512,7 @@ public class UpdateContext {
         editor.putBoolean("firstTimeOk", true);
         editor.putBoolean("firstTime", false);
         editor.putString("rolledBackVersion", currentVersion);
+        editor.remove(LAUNCH_RECORD);
         editor.apply();
         return lastVersion;
     }
@@ -271,6 +523,6 @@ public class UpdateContext {
         params.hash = sp.getString("currentVersion", null);
         params.originHash = sp.getString("lastVersion", null);
         params.unzipDirectory = rootDir;
-        new DownloadTask(context).executeOnExecutor(this.executor, params);
+        getScheduler().submit(new DownloadTask(context, params), UpdateJobScheduler.PRIORITY_BACKGROUND);
     }
 }
@@ -0,0 +1,254 @@
+package cn.reactnative.modules.update;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link DownloadTask}s in two lanes: network downloads on the I/O lane
+ * and patching/unzipping on the CPU lane, so a patch never waits behind a
+ * download. Queued jobs are ordered by priority, jobs building the same
+ * version are merged whatever their type, and jobs can be cancelled by hash.
+ * While a cleanup runs, newly submitted jobs wait for it, so it never sees
+ * their files half written.
+ */
+class UpdateJobScheduler {
+    static final int PRIORITY_USER_VISIBLE  = 0;
+    static final int PRIORITY_BACKGROUND    = 10;
+
+    private static final int IO_THREADS = 2;
+    private static final int CPU_THREADS = 1;
+
+    private final ThreadPoolExecutor ioLane = ParallelWorkers.newLane("pushy-io", IO_THREADS,
+            Process.THREAD_PRIORITY_BACKGROUND, new PriorityBlockingQueue<Runnable>());
+    private final ThreadPoolExecutor cpuLane = ParallelWorkers.newLane("pushy-cpu", CPU_THREADS,
+            Process.THREAD_PRIORITY_BACKGROUND, new PriorityBlockingQueue<Runnable>());
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private final List<Stage> deferred = new ArrayList<>();
+    private boolean cleaning;
+
+    private class Job {
+        final String key;
+        final DownloadTask task;
+        final int priority;
+        final List<UpdateContext.DownloadFileListener> listeners = new ArrayList<>();
+        boolean started;
+        Stage queued;
+
+        Job(String key, DownloadTask task, int priority) {
+            this.key = key;
+            this.task = task;
+            this.priority = priority;
+        }
+    }
+
+    private class Stage implements Runnable, Comparable<Stage> {
+        final Job job;
+        final boolean download;
+        final long order = sequence.getAndIncrement();
+
+        Stage(Job job, boolean download) {
+            this.job = job;
+            this.download = download;
+        }
+
+        @Override
+        public void run() {
+            if (download) {
+                runDownload(job);
+            } else {
+                runProcess(job);
+            }
+        }
+
+        @Override
+        public int compareTo(Stage other) {
+            if (job.priority != other.job.priority) {
+                return job.priority < other.job.priority ? -1 : 1;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+
+    private static String keyOf(DownloadTaskParams params) {
+        switch (params.type) {
+            case DownloadTaskParams.TASK_TYPE_CLEANUP:
+                return String.valueOf(params.type);
+            case DownloadTaskParams.TASK_TYPE_PATCH_FULL:
+            case DownloadTaskParams.TASK_TYPE_PATCH_FROM_APK:
+            case DownloadTaskParams.TASK_TYPE_PATCH_FROM_PPK:
+                // All of them build the same version in the same staging directory,
+                // so any two for one hash must not run side by side.
+                return "version:" + params.hash;
+            default:
+                return params.type + ":" + params.hash;
+        }
+    }
+
+    void submit(DownloadTask task, int priority) {
+        DownloadTaskParams params = task.param;
+        String key = keyOf(params);
+        Stage stage;
+        synchronized (this) {
+            Job existing = jobs.get(key);
+            if (existing != null) {
+                if (params.type == DownloadTaskParams.TASK_TYPE_CLEANUP) {
+                    if (!existing.started) {
+                        // A cleanup is still waiting, let it use the latest versions to keep.
+                        existing.task.param.hash = params.hash;
+                        existing.task.param.originHash = params.originHash;
+                        existing.task.param.unzipDirectory = params.unzipDirectory;
+                        return;
+                    }
+                } else {
+                    if (UpdateContext.DEBUG) {
+                        Log.d("RNUpdate", "Merging duplicated job " + key);
+                    }
+                    if (params.listener != null) {
+                        existing.listeners.add(params.listener);
+                    }
+                    return;
+                }
+            }
+            Job job = new Job(key, task, priority);
+            if (params.listener != null) {
+                job.listeners.add(params.listener);
+            }
+            jobs.put(key, job);
+            stage = new Stage(job, true);
+            job.queued = stage;
+            if (cleaning) {
+                deferred.add(stage);
+                return;
+            }
+        }
+        ioLane.execute(stage);
+    }
+
+    /**
+     * Cancel every queued or running job for {@code hash}.
+     *
+     * @return whether any job was found
+     */
+    boolean cancel(String hash) {
+        List<Job> cancelled = new ArrayList<>();
+        synchronized (this) {
+            for (Job job : jobs.values()) {
+                if (job.task.param.type != DownloadTaskParams.TASK_TYPE_CLEANUP && hash.equals(job.task.param.hash)) {
+                    cancelled.add(job);
+                }
+            }
+        }
+        for (Job job : cancelled) {
+            job.task.cancel();
+            Stage stage;
+            boolean wasDeferred;
+            synchronized (this) {
+                stage = job.queued;
+                wasDeferred = deferred.remove(stage);
+            }
+            if (stage != null && (wasDeferred || ioLane.remove(stage) || cpuLane.remove(stage))) {
+                fail(job, new Error("Download cancelled"));
+            }
+        }
+        return !cancelled.isEmpty();
+    }
+
+    /**
+     * Hashes of jobs that are queued or running, whose files must survive a cleanup.
+     */
+    synchronized Set<String> activeHashes() {
+        Set<String> hashes = new HashSet<>();
+        for (Job job : jobs.values()) {
+            if (job.task.param.type != DownloadTaskParams.TASK_TYPE_CLEANUP && job.task.param.hash != null) {
+                hashes.add(job.task.param.hash);
+            }
+        }
+        return hashes;
+    }
+
+    private void runDownload(Job job) {
+        synchronized (this) {
+            job.started = true;
+            job.queued = null;
+            if (job.task.param.type == DownloadTaskParams.TASK_TYPE_CLEANUP) {
+                // Jobs submitted from now on are deferred until the cleanup is done.
+                cleaning = true;
+                job.task.param.activeHashes = activeHashes();
+            }
+        }
+        try {
+            job.task.download();
+        } catch (Throwable e) {
+            fail(job, e);
+            return;
+        }
+        if (!job.task.needsProcessing()) {
+            complete(job);
+            return;
+        }
+        Stage stage = new Stage(job, false);
+        synchronized (this) {
+            job.queued = stage;
+        }
+        cpuLane.execute(stage);
+    }
+
+    private void runProcess(Job job) {
+        synchronized (this) {
+            job.queued = null;
+        }
+        try {
+            job.task.process();
+        } catch (Throwable e) {
+            fail(job, e);
+            return;
+        }
+        complete(job);
+    }
+
+    private List<UpdateContext.DownloadFileListener> finish(Job job) {
+        List<Stage> released = null;
+        List<UpdateContext.DownloadFileListener> listeners;
+        synchronized (this) {
+            if (jobs.get(job.key) == job) {
+                jobs.remove(job.key);
+            }
+            if (job.started && job.task.param.type == DownloadTaskParams.TASK_TYPE_CLEANUP) {
+                cleaning = false;
+                released = new ArrayList<>(deferred);
+                deferred.clear();
+            }
+            listeners = new ArrayList<>(job.listeners);
+        }
+        if (released != null) {
+            for (Stage stage : released) {
+                ioLane.execute(stage);
+            }
+        }
+        return listeners;
+    }
+
+    private void complete(Job job) {
+        for (UpdateContext.DownloadFileListener listener : finish(job)) {
+            listener.onDownloadCompleted(job.task.param);
+        }
+    }
+
+    private void fail(Job job, Throwable e) {
+        job.task.onFailed(e);
+        for (UpdateContext.DownloadFileListener listener : finish(job)) {
+            listener.onDownloadFailed(e);
+        }
+    }
+}
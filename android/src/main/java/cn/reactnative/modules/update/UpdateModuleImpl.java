@@ -30,7 +30,8 @@ public class UpdateModuleImpl {
     public static void downloadFullUpdate(UpdateContext updateContext, ReadableMap options, Promise promise) {
         String url = options.getString("updateUrl");
         String hash = options.getString("hash");
-        updateContext.downloadFullUpdate(url, hash, new UpdateContext.DownloadFileListener() {
+        String digest = options.hasKey("digest") ? options.getString("digest") : null;
+        updateContext.downloadFullUpdate(url, hash, digest, new UpdateContext.DownloadFileListener() {
             @Override
             public void onDownloadCompleted(DownloadTaskParams params) {
                 promise.resolve(null);
@@ -69,7 +70,8 @@ public class UpdateModuleImpl {
     public static void downloadPatchFromPackage(UpdateContext updateContext, ReadableMap options, Promise promise) {
         String url = options.getString("updateUrl");
         String hash = options.getString("hash");
-        updateContext.downloadPatchFromApk(url, hash, new UpdateContext.DownloadFileListener() {
+        String digest = options.hasKey("digest") ? options.getString("digest") : null;
+        updateContext.downloadPatchFromApk(url, hash, digest, new UpdateContext.DownloadFileListener() {
             @Override
             public void onDownloadCompleted(DownloadTaskParams params) {
                 promise.resolve(null);
@@ -89,7 +91,8 @@ public class UpdateModuleImpl {
 
             String originHash = options.getString("originHash");
 
-            updateContext.downloadPatchFromPpk(url, hash, originHash, new UpdateContext.DownloadFileListener() {
+            String digest = options.hasKey("digest") ? options.getString("digest") : null;
+            updateContext.downloadPatchFromPpk(url, hash, originHash, digest, new UpdateContext.DownloadFileListener() {
                 @Override
                 public void onDownloadCompleted(DownloadTaskParams params) {
                     promise.resolve(null);
@@ -105,6 +108,10 @@ public class UpdateModuleImpl {
         }
     }
 
+    public static void cancelDownload(UpdateContext updateContext, String hash, Promise promise) {
+        promise.resolve(updateContext.cancelDownload(hash));
+    }
+
     public static void reloadUpdate(UpdateContext updateContext, ReactApplicationContext mContext, ReadableMap options,Promise promise) {
         final String hash = options.getString("hash");
 
@@ -24,7 +24,7 @@ public class UpdateModule extends NativePushySpec {
     }
 
     public UpdateModule(ReactApplicationContext reactContext) {
-        this(reactContext, new UpdateContext(reactContext.getApplicationContext()));
+        this(reactContext, UpdateContext.getInstance(reactContext));
     }
 
     @Override
@@ -92,6 +92,11 @@ public class UpdateModule extends NativePushySpec {
         UpdateModuleImpl.downloadPatchFromPpk(updateContext,options,promise);
     }
 
+    @Override
+    public void cancelDownload(final String hash, final Promise promise) {
+        UpdateModuleImpl.cancelDownload(updateContext, hash, promise);
+    }
+
     @Override
     public void reloadUpdate(ReadableMap options,Promise promise) {
         UpdateModuleImpl.reloadUpdate(updateContext, mContext, options,promise);
@@ -38,7 +38,7 @@ public class UpdateModule extends ReactContextBaseJavaModule {
     }
 
     public UpdateModule(ReactApplicationContext reactContext) {
-        this(reactContext, new UpdateContext(reactContext.getApplicationContext()));
+        this(reactContext, UpdateContext.getInstance(reactContext));
     }
 
     @Override
@@ -72,7 +72,8 @@ public class UpdateModule extends ReactContextBaseJavaModule {
     public void downloadFullUpdate(ReadableMap options, final Promise promise) {
         String url = options.getString("updateUrl");
         String hash = options.getString("hash");
-        updateContext.downloadFullUpdate(url, hash, new UpdateContext.DownloadFileListener() {
+        String digest = options.hasKey("digest") ? options.getString("digest") : null;
+        updateContext.downloadFullUpdate(url, hash, digest, new UpdateContext.DownloadFileListener() {
             @Override
             public void onDownloadCompleted(DownloadTaskParams params) {
                 promise.resolve(null);
@@ -134,7 +135,8 @@ public class UpdateModule extends ReactContextBaseJavaModule {
         String url = options.getString("updateUrl");
         String hash = options.getString("hash");
         
-        updateContext.downloadPatchFromApk(url, hash, new UpdateContext.DownloadFileListener() {
+        String digest = options.hasKey("digest") ? options.getString("digest") : null;
+        updateContext.downloadPatchFromApk(url, hash, digest, new UpdateContext.DownloadFileListener() {
             @Override
             public void onDownloadCompleted(DownloadTaskParams params) {
                 promise.resolve(null);
@@ -154,7 +156,8 @@ public class UpdateModule extends ReactContextBaseJavaModule {
         
         String originHash = options.getString("originHash");
         
-        updateContext.downloadPatchFromPpk(url, hash, originHash, new UpdateContext.DownloadFileListener() {
+        String digest = options.hasKey("digest") ? options.getString("digest") : null;
+        updateContext.downloadPatchFromPpk(url, hash, originHash, digest, new UpdateContext.DownloadFileListener() {
             @Override
             public void onDownloadCompleted(DownloadTaskParams params) {
                 promise.resolve(null);
@@ -167,6 +170,11 @@ public class UpdateModule extends ReactContextBaseJavaModule {
         });
     }
 
+    @ReactMethod
+    public void cancelDownload(final String hash, final Promise promise) {
+        promise.resolve(updateContext.cancelDownload(hash));
+    }
+
     @ReactMethod
     public void reloadUpdate(ReadableMap options, final Promise promise) {
         final String hash = options.getString("hash");
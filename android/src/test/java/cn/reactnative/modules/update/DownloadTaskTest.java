@@ -0,0 +1,257 @@
+package cn.reactnative.modules.update;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadTaskTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File randomFile(int size) throws IOException {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        File file = temp.newFile();
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    @Test
+    public void copyFileCopiesEveryByte() throws IOException {
+        for (int size : new int[]{0, 1, 64 * 1024 + 7, 3 * 1024 * 1024}) {
+            File from = randomFile(size);
+            File to = temp.newFile();
+            DownloadTask.copyFile(from, to);
+            assertArrayEquals("size " + size, Files.readAllBytes(from.toPath()), Files.readAllBytes(to.toPath()));
+        }
+    }
+
+    @Test
+    public void transferFailsOnShortSource() throws IOException {
+        File from = randomFile(1000);
+        File to = temp.newFile();
+        try (RandomAccessFile source = new RandomAccessFile(from, "r");
+             RandomAccessFile target = new RandomAccessFile(to, "rw")) {
+            // As if the source shrank after its size was taken.
+            IOException e = assertThrows(IOException.class,
+                    () -> DownloadTask.transfer(source.getChannel(), 1500, target.getChannel()));
+            assertEquals("Source ended after 1000 of 1500 bytes", e.getMessage());
+        }
+    }
+
+    private static void streamCopy(File from, File to) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(from); OutputStream out = new FileOutputStream(to)) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        }
+    }
+
+    /**
+     * Timing harness rather than an assertion: transferTo against the stream
+     * loop it replaced. Results depend on the machine and are only printed.
+     */
+    @Test
+    public void copyFileThroughput() throws IOException {
+        int size = 64 * 1024 * 1024;
+        File from = randomFile(size);
+        File to = temp.newFile();
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            DownloadTask.copyFile(from, to);
+            long transferNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            streamCopy(from, to);
+            long streamNanos = System.nanoTime() - start;
+            System.out.printf("copy %d MiB: transferTo %.1f MB/s, stream %.1f MB/s%n", size >> 20,
+                    size * 1000.0 / transferNanos, size * 1000.0 / streamNanos);
+        }
+        assertEquals(size, to.length());
+    }
+
+    /**
+     * A body served from memory at most {@code maxRead} bytes per read, like a socket.
+     */
+    private static ResponseBody body(final byte[] bytes, final long contentLength, final int maxRead) {
+        return new ResponseBody() {
+            @Override
+            public MediaType contentType() {
+                return null;
+            }
+
+            @Override
+            public long contentLength() {
+                return contentLength;
+            }
+
+            @Override
+            public BufferedSource source() {
+                return Okio.buffer(new Source() {
+                    int position = 0;
+
+                    @Override
+                    public long read(Buffer sink, long byteCount) {
+                        if (position == bytes.length) {
+                            return -1;
+                        }
+                        int count = (int) Math.min(Math.min(byteCount, maxRead), bytes.length - position);
+                        sink.write(bytes, position, count);
+                        position += count;
+                        return count;
+                    }
+
+                    @Override
+                    public Timeout timeout() {
+                        return Timeout.NONE;
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                });
+            }
+        };
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static ProgressReporter noProgress() {
+        return new ProgressReporter((received, total) -> {
+        });
+    }
+
+    private static final Cancellation NOT_CANCELLED = () -> {
+    };
+
+    @Test
+    public void writeResponseWritesBytesUnchangedAndCheckpointsFlushedBytes() throws IOException {
+        byte[] bytes = randomBytes(5 * 1024 * 1024 + 123);
+        File target = new File(temp.getRoot(), "update.ppk");
+        final List<long[]> checkpoints = new ArrayList<>();
+        PartialDownload partial = new PartialDownload(target) {
+            @Override
+            void checkpoint(long offset) throws IOException {
+                // The offset and what is on disk at that moment.
+                checkpoints.add(new long[]{offset, partFile.length()});
+                super.checkpoint(offset);
+            }
+        };
+        partial.restart("\"v1\"");
+        MessageDigest digest = Sha256.newDigest();
+
+        DownloadTask.writeResponse(body(bytes, bytes.length, 7000), "test", partial, digest,
+                noProgress(), NOT_CANCELLED, 64 * 1024, 1024 * 1024);
+
+        assertArrayEquals(bytes, Files.readAllBytes(partial.partFile.toPath()));
+        MessageDigest expected = Sha256.newDigest();
+        expected.update(bytes);
+        assertEquals(Sha256.hex(expected), Sha256.hex(digest));
+        assertTrue(checkpoints.size() >= 4);
+        long last = 0;
+        for (long[] checkpoint : checkpoints) {
+            assertTrue("checkpoint " + checkpoint[0] + " beyond " + checkpoint[1] + " flushed bytes",
+                    checkpoint[0] <= checkpoint[1]);
+            assertTrue(checkpoint[0] > last);
+            last = checkpoint[0];
+        }
+
+        PartialDownload reloaded = new PartialDownload(target);
+        reloaded.load();
+        assertEquals("\"v1\"", reloaded.etag);
+        assertEquals(last, reloaded.offset);
+    }
+
+    @Test
+    public void writeResponseAppendsWhenResuming() throws IOException {
+        byte[] bytes = randomBytes(300 * 1024);
+        File target = new File(temp.getRoot(), "update.ppk");
+        PartialDownload partial = new PartialDownload(target);
+        partial.restart("\"v1\"");
+        int offset = 100 * 1024;
+        Files.write(partial.partFile.toPath(), Arrays.copyOf(bytes, offset));
+        partial.offset = offset;
+
+        byte[] rest = Arrays.copyOfRange(bytes, offset, bytes.length);
+        DownloadTask.writeResponse(body(rest, rest.length, 4096), "test", partial, null,
+                noProgress(), NOT_CANCELLED, 64 * 1024, 1024 * 1024);
+
+        assertArrayEquals(bytes, Files.readAllBytes(partial.partFile.toPath()));
+    }
+
+    @Test
+    public void writeResponseFailsOnShortBody() throws IOException {
+        byte[] bytes = randomBytes(1000);
+        PartialDownload partial = new PartialDownload(new File(temp.getRoot(), "update.ppk"));
+        partial.restart(null);
+        Error e = assertThrows(Error.class, () -> DownloadTask.writeResponse(body(bytes, 2000, 4096), "test",
+                partial, null, noProgress(), NOT_CANCELLED, 64 * 1024, 1024 * 1024));
+        assertEquals("Unexpected eof while reading downloaded update", e.getMessage());
+    }
+
+    @Test
+    public void writeResponseStopsWhenCancelled() throws IOException {
+        byte[] bytes = randomBytes(1024 * 1024);
+        PartialDownload partial = new PartialDownload(new File(temp.getRoot(), "update.ppk"));
+        partial.restart(null);
+        assertThrows(IOException.class, () -> DownloadTask.writeResponse(body(bytes, bytes.length, 4096), "test",
+                partial, null, noProgress(), () -> {
+                    throw new IOException("Download cancelled");
+                }, 64 * 1024, 1024 * 1024));
+    }
+
+    /**
+     * Timing harness rather than an assertion: the old 4 KiB emit per read,
+     * fixed 64 KiB and 1 MiB chunks, and the adaptive chunks used for
+     * downloads, all reading 8 KiB at a time. Results depend on the machine
+     * and are only printed.
+     */
+    @Test
+    public void writeResponseThroughputByChunkStrategy() throws IOException {
+        byte[] bytes = randomBytes(64 * 1024 * 1024);
+        long[][] strategies = {{4096, 4096}, {64 * 1024, 64 * 1024}, {1024 * 1024, 1024 * 1024}, {64 * 1024, 1024 * 1024}};
+        String[] names = {"4 KiB", "64 KiB", "1 MiB", "adaptive"};
+        for (int i = 0; i < strategies.length; i++) {
+            PartialDownload partial = new PartialDownload(new File(temp.getRoot(), "update" + i + ".ppk"));
+            partial.restart(null);
+            long start = System.nanoTime();
+            DownloadTask.writeResponse(body(bytes, bytes.length, 8192), "test", partial, null,
+                    noProgress(), NOT_CANCELLED, strategies[i][0], strategies[i][1]);
+            long nanos = System.nanoTime() - start;
+            assertEquals(bytes.length, partial.partFile.length());
+            System.out.printf("writeResponse, %s chunks: %.1f MB/s%n", names[i], bytes.length * 1000.0 / nanos);
+        }
+    }
+}
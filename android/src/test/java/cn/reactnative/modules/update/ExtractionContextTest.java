@@ -0,0 +1,201 @@
+package cn.reactnative.modules.update;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class ExtractionContextTest {
+    private File temp;
+    private File root;
+
+    @Before
+    public void setUp() throws IOException {
+        temp = Files.createTempDirectory("pushy").toFile().getCanonicalFile();
+        root = new File(temp, "root");
+        root.mkdir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        // Deepest first, without following the symlinks.
+        List<Path> paths = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(temp.toPath())) {
+            walk.forEach(paths::add);
+        }
+        Collections.reverse(paths);
+        for (Path path : paths) {
+            Files.delete(path);
+        }
+    }
+
+    private static void assertIllegal(final String name) {
+        assertThrows(name, SecurityException.class, () -> ExtractionContext.normalize(name));
+    }
+
+    @Test
+    public void normalizeKeepsPlainNames() {
+        assertEquals("index.bundlejs", ExtractionContext.normalize("index.bundlejs"));
+        assertEquals("assets/img/a.png", ExtractionContext.normalize("assets/img/a.png"));
+        assertEquals("a..b/c..", ExtractionContext.normalize("a..b/c.."));
+    }
+
+    @Test
+    public void normalizeDropsEmptyAndDotSegments() {
+        assertEquals("a/b", ExtractionContext.normalize("a//b"));
+        assertEquals("a/b", ExtractionContext.normalize("./a/./b/"));
+        assertEquals("a/b", ExtractionContext.normalize("a/b/."));
+    }
+
+    @Test
+    public void normalizeRejectsParentSegments() {
+        assertIllegal("..");
+        assertIllegal("../a");
+        assertIllegal("a/../b");
+        assertIllegal("a/b/..");
+        assertIllegal("./../a");
+    }
+
+    @Test
+    public void normalizeRejectsBackslashParentSegments() {
+        assertIllegal("..\\a");
+        assertIllegal("a\\..");
+        assertIllegal("a\\..\\b");
+        assertIllegal("a/..\\..\\b");
+        assertEquals("a\\b", ExtractionContext.normalize("a\\b"));
+    }
+
+    @Test
+    public void normalizeRejectsAbsoluteNames() {
+        assertIllegal("/etc/passwd");
+        assertIllegal("//a");
+        assertIllegal("\\a");
+        assertIllegal("\\\\server\\share");
+    }
+
+    @Test
+    public void normalizeRejectsNul() {
+        assertIllegal("a\0b");
+        assertIllegal("a/\0/b");
+    }
+
+    @Test
+    public void normalizeRejectsEmptyNames() {
+        assertIllegal(null);
+        assertIllegal("");
+        assertIllegal(".");
+        assertIllegal("./");
+        assertIllegal("/");
+    }
+
+    @Test
+    public void resolveStaysUnderRoot() throws IOException {
+        ExtractionContext context = new ExtractionContext(root);
+        assertEquals(new File(root, "a/b.txt"), context.resolve("./a//b.txt"));
+        assertThrows(SecurityException.class, () -> context.resolve("../escape"));
+    }
+
+    @Test
+    public void resolveRejectsSymlinkedParent() throws IOException {
+        File outside = new File(temp, "outside");
+        outside.mkdir();
+        Files.createSymbolicLink(new File(root, "link").toPath(), outside.toPath());
+        ExtractionContext context = new ExtractionContext(root);
+        assertThrows(SecurityException.class, () -> context.resolve("link/file"));
+        assertThrows(SecurityException.class, () -> context.resolve("link/sub/file"));
+    }
+
+    @Test
+    public void resolveAcceptsSymlinkInsideRoot() throws IOException {
+        File inside = new File(root, "real");
+        inside.mkdir();
+        Files.createSymbolicLink(new File(root, "link").toPath(), inside.toPath());
+        ExtractionContext context = new ExtractionContext(root);
+        assertEquals(new File(root, "link/file"), context.resolve("link/file"));
+    }
+
+    @Test
+    public void resolveAcceptsSymlinkedRoot() throws IOException {
+        File link = new File(temp, "rootLink");
+        Files.createSymbolicLink(link.toPath(), root.toPath());
+        ExtractionContext context = new ExtractionContext(link);
+        assertEquals(new File(root, "a/b"), context.resolve("a/b"));
+    }
+
+    @Test
+    public void mkdirsCreatesParentsForResolvedNames() throws IOException {
+        ExtractionContext context = new ExtractionContext(root);
+        File file = context.resolve("a/b/c.txt");
+        context.mkdirs(file.getParentFile());
+        assertEquals(true, new File(root, "a/b").isDirectory());
+        assertEquals(new File(root, "a/b/d.txt"), context.resolve("a/b/d.txt"));
+    }
+
+    private static final String[] SEGMENTS = {
+            "..", ".", "", "\\", "..\\", "\\..", "..\\..", "\0", "a", "b", "c..", "..c", "x\\y",
+            "in", "out", "in/..", "/",
+    };
+
+    private static String randomName(Random random) {
+        StringBuilder name = new StringBuilder();
+        if (random.nextInt(8) == 0) {
+            name.append(random.nextBoolean() ? "/" : "\\");
+        }
+        int count = 1 + random.nextInt(5);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                name.append('/');
+            }
+            name.append(SEGMENTS[random.nextInt(SEGMENTS.length)]);
+        }
+        return name.toString();
+    }
+
+    @Test
+    public void resolveNeverEscapesRoot() throws IOException {
+        File outside = new File(temp, "outside");
+        outside.mkdir();
+        File inside = new File(root, "real");
+        inside.mkdir();
+        Files.createSymbolicLink(new File(root, "out").toPath(), outside.toPath());
+        Files.createSymbolicLink(new File(root, "in").toPath(), inside.toPath());
+        String canonicalRoot = root.getCanonicalPath();
+
+        long seed = System.nanoTime();
+        Random random = new Random(seed);
+        ExtractionContext context = new ExtractionContext(root);
+        int resolved = 0;
+        for (int i = 0; i < 20000; i++) {
+            String name = randomName(random);
+            File target;
+            try {
+                target = context.resolve(name);
+            } catch (SecurityException e) {
+                continue;
+            }
+            resolved++;
+            String message = "seed " + seed + ", name " + name.replace("\0", "\\0") + " resolved to " + target;
+            assertTrue(message, target.getPath().startsWith(canonicalRoot + File.separator));
+            // The last segment is replaced rather than followed when written, so it is
+            // the directory holding it that must really be under the root.
+            String parent = target.getParentFile().getCanonicalPath();
+            assertTrue(message, parent.equals(canonicalRoot) || parent.startsWith(canonicalRoot + File.separator));
+            // Directories made while extracting must not open a way out either.
+            context.mkdirs(target.getParentFile());
+        }
+        assertTrue("only " + resolved + " names resolved", resolved > 1000);
+    }
+}
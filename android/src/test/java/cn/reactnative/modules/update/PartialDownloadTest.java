@@ -0,0 +1,38 @@
+package cn.reactnative.modules.update;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PartialDownloadTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void partWithSidecarIsResumable() throws IOException {
+        File part = temp.newFile("a.ppk.part");
+        File meta = temp.newFile("a.ppk.part.meta");
+        assertTrue(PartialDownload.isResumable(part));
+        assertTrue(PartialDownload.isResumable(meta));
+    }
+
+    @Test
+    public void partWithoutSidecarIsNotResumable() throws IOException {
+        // Left by a download without a strong ETag, or by a killed segmented download.
+        assertFalse(PartialDownload.isResumable(temp.newFile("a.ppk.part")));
+        assertFalse(PartialDownload.isResumable(temp.newFile("b.ppk.part.meta")));
+    }
+
+    @Test
+    public void otherFilesAreNotResumable() throws IOException {
+        temp.newFile("a.ppk.part.meta");
+        assertFalse(PartialDownload.isResumable(temp.newFile("a.ppk")));
+        assertFalse(PartialDownload.isResumable(temp.newFile("a.part.tmp")));
+    }
+}
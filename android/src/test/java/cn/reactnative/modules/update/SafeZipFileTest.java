@@ -0,0 +1,183 @@
+package cn.reactnative.modules.update;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class SafeZipFileTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    /**
+     * Compressible but not trivial content, so inflating does real work.
+     */
+    private static byte[] content(Random random, int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) ('a' + random.nextInt(16));
+        }
+        return bytes;
+    }
+
+    private static Map<String, byte[]> entries(int count, int size) {
+        Random random = new Random(count);
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            entries.put("assets/dir" + (i % 7) + "/file" + i + ".bin", content(random, size + i));
+        }
+        return entries;
+    }
+
+    private File zip(Map<String, byte[]> entries) throws IOException {
+        File file = temp.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    private static void assertExtracted(File root, Map<String, byte[]> entries) throws IOException {
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue(),
+                    Files.readAllBytes(new File(root, entry.getKey()).toPath()));
+        }
+    }
+
+    @Test
+    public void extractAllWritesEveryEntry() throws IOException {
+        Map<String, byte[]> entries = entries(300, 4096);
+        File root = temp.newFolder();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (SafeZipFile zipFile = new SafeZipFile(zip(entries))) {
+            zipFile.extractAll(root, executor);
+        } finally {
+            executor.shutdown();
+        }
+        assertExtracted(root, entries);
+    }
+
+    @Test
+    public void extractAllSkipsNamedEntries() throws IOException {
+        Map<String, byte[]> entries = entries(10, 100);
+        entries.put("__diff.json", new byte[]{'{', '}'});
+        File root = temp.newFolder();
+        try (SafeZipFile zipFile = new SafeZipFile(zip(entries))) {
+            zipFile.extractAll(root, Collections.singleton("__diff.json"), Runnable::run);
+        }
+        assertFalse(new File(root, "__diff.json").exists());
+        entries.remove("__diff.json");
+        assertExtracted(root, entries);
+    }
+
+    @Test
+    public void extractAllStopsAtFirstFailure() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("before", new byte[]{1});
+        entries.put("blocked", new byte[]{2});
+        for (int i = 0; i < 20; i++) {
+            entries.put("after" + i, new byte[]{3});
+        }
+        File root = temp.newFolder();
+        // A non-empty directory where the file should go can not be replaced.
+        assertTrue(new File(root, "blocked/child").mkdirs());
+
+        try (SafeZipFile zipFile = new SafeZipFile(zip(entries))) {
+            // Running the workers one after another makes the order deterministic.
+            assertThrows(FileNotFoundException.class, () -> zipFile.extractAll(root, Runnable::run));
+        }
+        assertTrue(new File(root, "before").isFile());
+        for (int i = 0; i < 20; i++) {
+            assertFalse("after" + i, new File(root, "after" + i).exists());
+        }
+    }
+
+    @Test
+    public void extractAllStopsWhenCancelled() throws IOException {
+        Map<String, byte[]> entries = entries(20, 100);
+        File root = temp.newFolder();
+        final AtomicInteger checks = new AtomicInteger();
+        try (SafeZipFile zipFile = new SafeZipFile(zip(entries))) {
+            IOException e = assertThrows(IOException.class, () -> zipFile.extractAll(root,
+                    Collections.<String>emptySet(), Runnable::run, () -> {
+                        if (checks.incrementAndGet() > 5) {
+                            throw new IOException("Download cancelled");
+                        }
+                    }));
+            assertEquals("Download cancelled", e.getMessage());
+        }
+        int extracted = 0;
+        for (String name : entries.keySet()) {
+            if (new File(root, name).exists()) {
+                extracted++;
+            }
+        }
+        assertEquals(5, extracted);
+    }
+
+    @Test
+    public void extractAllRejectsEscapingNames() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("ok", new byte[]{1});
+        entries.put("a/../../escape", new byte[]{2});
+        File root = temp.newFolder();
+        try (SafeZipFile zipFile = new SafeZipFile(zip(entries))) {
+            assertThrows(SecurityException.class, () -> zipFile.extractAll(root, Runnable::run));
+        }
+        // Names are checked before anything is written.
+        assertFalse(new File(root, "ok").exists());
+    }
+
+    /**
+     * Timing harness rather than an assertion: extraction time with 1, 2 and
+     * 4 threads available to the workers. Results depend on the machine and
+     * are only printed.
+     */
+    @Test
+    public void extractAllThroughputByWorkers() throws IOException {
+        Map<String, byte[]> entries = entries(300, 64 * 1024);
+        long bytes = 0;
+        for (byte[] content : entries.values()) {
+            bytes += content.length;
+        }
+        File zip = zip(entries);
+        for (int threads : new int[]{1, 2, 4}) {
+            File root = temp.newFolder();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            long start = System.nanoTime();
+            try (SafeZipFile zipFile = new SafeZipFile(zip)) {
+                zipFile.extractAll(root, executor);
+            } finally {
+                executor.shutdown();
+            }
+            long nanos = System.nanoTime() - start;
+            assertExtracted(root, entries);
+            System.out.printf("extractAll, %d threads: %d ms, %.1f MB/s%n",
+                    threads, nanos / 1000000, bytes * 1000.0 / nanos);
+        }
+    }
+}
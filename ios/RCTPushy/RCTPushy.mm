@@ -8,6 +8,7 @@
 
 #import <React/RCTConvert.h>
 #import <React/RCTLog.h>
+#import <CommonCrypto/CommonDigest.h>
 // #import <React/RCTReloadCommand.h>
 
 static NSString *const keyPushyInfo = @"REACTNATIVECN_PUSHY_INFO_KEY";
@@ -35,6 +36,7 @@ static NSString * const BUNDLE_PATCH_NAME = @"index.bundlejs.patch";
 static NSString * const ERROR_OPTIONS = @"options error";
 static NSString * const ERROR_HDIFFPATCH = @"hdiffpatch error";
 static NSString * const ERROR_FILE_OPERATION = @"file operation error";
+static NSString * const ERROR_DIGEST = @"digest mismatch";
 
 // event def
 static NSString * const EVENT_PROGRESS_DOWNLOAD = @"RCTPushyDownloadProgress";
@@ -273,6 +275,14 @@ RCT_EXPORT_METHOD(downloadPatchFromPpk:(NSDictionary *)options
     }];
 }
 
+// Downloads are not cancellable on iOS yet, report that nothing was cancelled.
+RCT_EXPORT_METHOD(cancelDownload:(NSString *)hash
+                  resolver:(RCTPromiseResolveBlock)resolve
+                  rejecter:(RCTPromiseRejectBlock)reject)
+{
+    resolve(@(NO));
+}
+
 RCT_EXPORT_METHOD(setNeedUpdate:(NSDictionary *)options
                   resolver:(RCTPromiseResolveBlock)resolve
                   rejecter:(RCTPromiseRejectBlock)reject)
@@ -405,6 +415,7 @@ RCT_EXPORT_METHOD(markSuccess:
         return;
     }
     NSString *originHash = [RCTConvert NSString:options[@"originHash"]];
+    NSString *digest = [RCTConvert NSString:options[@"digest"]];
     if (type == PushyTypePatchFromPpk && [self isBlankString:originHash]) {
         callback([self errorWithMessage:ERROR_OPTIONS]);
         return;
@@ -433,6 +444,10 @@ RCT_EXPORT_METHOD(markSuccess:
         if (error) {
             callback(error);
         }
+        else if (digest.length > 0 && ![self file:zipFilePath matchesDigest:digest]) {
+            [[NSFileManager defaultManager] removeItemAtPath:zipFilePath error:nil];
+            callback([self errorWithMessage:ERROR_DIGEST]);
+        }
         else {
             RCTLogInfo(@"RCTPushy -- unzip file %@", zipFilePath);
             NSString *unzipFilePath = [dir stringByAppendingPathComponent:hash];
@@ -556,6 +571,40 @@ RCT_EXPORT_METHOD(markSuccess:
     }
 }
 
+// Hex sha256 of a file, read in chunks so large packages never sit in memory at once.
+- (NSString *)sha256OfFile:(NSString *)path
+{
+    NSFileHandle *handle = [NSFileHandle fileHandleForReadingAtPath:path];
+    if (!handle) {
+        return nil;
+    }
+    CC_SHA256_CTX context;
+    CC_SHA256_Init(&context);
+    while (YES) {
+        @autoreleasepool {
+            NSData *data = [handle readDataOfLength:64 * 1024];
+            if (data.length == 0) {
+                break;
+            }
+            CC_SHA256_Update(&context, data.bytes, (CC_LONG)data.length);
+        }
+    }
+    [handle closeFile];
+    unsigned char hash[CC_SHA256_DIGEST_LENGTH];
+    CC_SHA256_Final(hash, &context);
+    NSMutableString *hex = [NSMutableString stringWithCapacity:CC_SHA256_DIGEST_LENGTH * 2];
+    for (int i = 0; i < CC_SHA256_DIGEST_LENGTH; i++) {
+        [hex appendFormat:@"%02x", hash[i]];
+    }
+    return hex;
+}
+
+- (BOOL)file:(NSString *)path matchesDigest:(NSString *)digest
+{
+    NSString *actual = [self sha256OfFile:path];
+    return actual != nil && [actual caseInsensitiveCompare:digest] == NSOrderedSame;
+}
+
 - (NSError *)errorWithMessage:(NSString *)errorMessage
 {
     return [NSError errorWithDomain:@"cn.reactnative.pushy"
@@ -21,15 +21,22 @@ export interface Spec extends TurboModule {
     updateUrl: string;
     hash: string;
     originHash: string;
+    // Hex sha256 of the downloaded file; a mismatch rejects the download.
+    digest?: string;
   }): Promise<void>;
   downloadPatchFromPackage(options: {
     updateUrl: string;
     hash: string;
+    // Hex sha256 of the downloaded file; a mismatch rejects the download.
+    digest?: string;
   }): Promise<void>;
   downloadFullUpdate(options: {
     updateUrl: string;
     hash: string;
+    // Hex sha256 of the downloaded file; a mismatch rejects the download.
+    digest?: string;
   }): Promise<void>;
+  cancelDownload(hash: string): Promise<boolean>;
   downloadAndInstallApk(options: {
     url: string;
     target: string;